@@ -7,7 +7,18 @@ package lsh;
  */
 public interface HashingResult {
 	
+	/**
+	 * The first 64 bits of the signature.
+	 */
 	long getSignature();
 	int[] getBuckets();
+	
+	/**
+	 * The whole signature, 64 bits per word. The first word is getSignature().
+	 * Strategies that produce signatures wider than 64 bits override this.
+	 */
+	default long[] getSignatureWords(){
+		return new long[]{getSignature()};
+	}
 
 }
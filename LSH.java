@@ -1,19 +1,68 @@
 package lsh;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Interface for locality sensitive hashing algorithm. Please see chapter 3 of mining of massive data sets.
  * 
- * TODO: 
- * 1. Implement remove
- * 2. Implement an eviction strategy for old data, so your program doesn't run out of memory.
  * @author Administrator
  *
  */
 public interface LSH {
+	
+	/**
+	 * Finds the indexed items similar to the input. Each is returned once.
+	 * @param input
+	 * @param threshold
+	 * @return
+	 */
 	Collection<LSHable> search(LSHable input, int threshold);
+	
+	/**
+	 * Indexes an item. Adding an item equal to one already indexed leaves
+	 * the index with one of them.
+	 * @param input
+	 */
 	void add(LSHable input);
+	
+	/**
+	 * Removes an item from the index, however many times it was added.
+	 * @param input
+	 * @return true if the item was in the index.
+	 * @throws UnsupportedOperationException
+	 *             if the implementation can't remove items, as by default.
+	 */
+	default boolean remove(LSHable input){
+		throw new UnsupportedOperationException("remove is not supported by " + getClass().getName());
+	}
+	
+	/**
+	 * Adds every input. By default one add at a time; implementations may
+	 * hash and insert them in parallel.
+	 * @param inputs
+	 */
+	default void addAll(Collection<? extends LSHable> inputs){
+		for(LSHable input : inputs){
+			add(input);
+		}
+	}
+	
+	/**
+	 * Searches for every input. By default one search at a time;
+	 * implementations may search in parallel.
+	 * @param inputs
+	 * @param threshold
+	 * @return The results of each search, in the same order as the inputs.
+	 */
+	default List<Collection<LSHable>> searchAll(List<? extends LSHable> inputs, int threshold){
+		List<Collection<LSHable>> results = new ArrayList<Collection<LSHable>>(inputs.size());
+		for(LSHable input : inputs){
+			results.add(search(input, threshold));
+		}
+		return results;
+	}
 }
 
 
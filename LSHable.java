@@ -10,6 +10,9 @@ package lsh;
 public interface LSHable {
 	/*
 	 * Iteration order matters.
+	 * 
+	 * Implementations that already hold their features as ints should implement
+	 * PrimitiveLSHable instead, which avoids boxing every feature.
 	 */
 	Iterable<Integer> getInput();
 }
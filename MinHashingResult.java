@@ -0,0 +1,30 @@
+package lsh;
+
+/**
+ * A HashingResult that also keeps the minhashes its buckets were built from,
+ * so a search can probe the buckets of nearby minhashes too.
+ * 
+ * Minhashes are stored band after band: band b is made of minhashes
+ * b*getSizeOfBands() to (b+1)*getSizeOfBands() - 1, combined in that order.
+ * @author Greg
+ *
+ */
+public interface MinHashingResult extends HashingResult {
+
+	int[] getMinHashes();
+
+	/**
+	 * For each minhash, the feature that came closest to being picked instead.
+	 * Only meaningful where getMargins() isn't negative.
+	 */
+	int[] getRunnerUps();
+
+	/**
+	 * For each minhash, how far ahead of its runner-up it was. The smaller the
+	 * margin, the less confident the minhash, and the more likely a similar
+	 * input picks the runner-up. Negative if there was no runner-up.
+	 */
+	int[] getMargins();
+
+	int getSizeOfBands();
+}
@@ -0,0 +1,48 @@
+package lsh;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An LSHable whose input is available as a primitive int array. Strategies read
+ * the array directly, so hashing an item doesn't box or unbox any features.
+ * 
+ * @author Greg
+ *
+ */
+public interface PrimitiveLSHable extends LSHable {
+
+	/*
+	 * Iteration order matters. Strategies only read from the returned array, so
+	 * implementations may return their backing array instead of a copy.
+	 */
+	int[] getPrimitiveInput();
+
+	/**
+	 * Boxed fallback for callers that still expect an Iterable.
+	 */
+	@Override
+	default Iterable<Integer> getInput() {
+		final int[] input = getPrimitiveInput();
+		return new Iterable<Integer>() {
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<Integer>() {
+					private int position = 0;
+
+					@Override
+					public boolean hasNext() {
+						return position < input.length;
+					}
+
+					@Override
+					public Integer next() {
+						if (position >= input.length)
+							throw new NoSuchElementException();
+						return input[position++];
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,18 @@
+package lsh;
+
+/**
+ * An item whose features carry weights, such as term frequencies. Weight i
+ * belongs to feature i of getPrimitiveInput. Weighted strategies, such as
+ * SimHashStrategy, use the weights; other strategies see only the features.
+ * 
+ * @author Greg
+ *
+ */
+public interface WeightedLSHable extends PrimitiveLSHable {
+
+	/*
+	 * As long as getPrimitiveInput. A feature listed twice counts with both
+	 * of its weights. Strategies only read from the returned array.
+	 */
+	float[] getWeights();
+}
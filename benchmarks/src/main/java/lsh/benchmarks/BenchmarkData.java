@@ -0,0 +1,65 @@
+package lsh.benchmarks;
+
+import java.util.Random;
+
+import lsh.PrimitiveLSHable;
+
+/**
+ * Generated items for the benchmarks. Features are drawn from a bounded
+ * range, so items share features the way real documents share shingles,
+ * and queries are items with some of their features replaced.
+ * @author Greg
+ *
+ */
+final class BenchmarkData {
+
+	// range features are drawn from.
+	private static final int NUM_OF_FEATURES = 1 << 20;
+
+	// all methods static; private constructor.
+	private BenchmarkData() {}
+
+	static Item[] items(int count, int inputSize, long seed) {
+		Random random = new Random(seed);
+		Item[] items = new Item[count];
+		for (int i = 0; i < count; i++) {
+			int[] features = new int[inputSize];
+			for (int j = 0; j < inputSize; j++) {
+				features[j] = random.nextInt(NUM_OF_FEATURES);
+			}
+			items[i] = new Item(features);
+		}
+		return items;
+	}
+
+	/**
+	 * Copies of items with a fraction of each one's features replaced, so a
+	 * search for one finds the item it was made from, among others.
+	 */
+	static Item[] queries(Item[] items, double fractionChanged, long seed) {
+		Random random = new Random(seed);
+		Item[] queries = new Item[items.length];
+		for (int i = 0; i < items.length; i++) {
+			int[] features = items[i].features.clone();
+			int numToChange = (int) (features.length * fractionChanged);
+			for (int j = 0; j < numToChange; j++) {
+				features[random.nextInt(features.length)] = random.nextInt(NUM_OF_FEATURES);
+			}
+			queries[i] = new Item(features);
+		}
+		return queries;
+	}
+
+	static final class Item implements PrimitiveLSHable {
+		final int[] features;
+
+		Item(int[] features) {
+			this.features = features;
+		}
+
+		@Override
+		public int[] getPrimitiveInput() {
+			return features;
+		}
+	}
+}
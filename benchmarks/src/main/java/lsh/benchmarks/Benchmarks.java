@@ -0,0 +1,35 @@
+package lsh.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, which adds the allocation
+ * rate, and bytes allocated per operation, to every result. Takes the usual
+ * JMH command line; with no benchmark pattern it runs all of them.
+ *
+ * The benchmarks are a Maven module of their own, in the benchmarks
+ * directory, so the library still compiles without JMH. Its pom.xml compiles
+ * them together with the library's sources, runs jmh-generator-annprocess to
+ * generate the harness, and packages everything into one runnable jar:
+ * <pre>
+ * cd benchmarks
+ * mvn -B package
+ * java -jar target/benchmarks.jar StrategyBenchmark -p inputSize=100
+ * </pre>
+ * @author Greg
+ *
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+		if (commandLine.getIncludes().isEmpty())
+			options.include(Benchmarks.class.getPackage().getName() + "\\.");
+		new Runner(options.build()).run();
+	}
+}
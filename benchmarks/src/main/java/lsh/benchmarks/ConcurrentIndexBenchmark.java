@@ -0,0 +1,147 @@
+package lsh.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lsh.LSHable;
+import lsh.benchmarks.BenchmarkData.Item;
+import lsh.impl.LSHImpl;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * LSHImpl.add and LSHImpl.search from several threads sharing one index:
+ * all adding, all searching, and a mix of both. Runs on every core by
+ * default; pass -t to change that.
+ *
+ * Each iteration starts from a new index of indexSize items, so the index
+ * only grows by the adds of one iteration. Each thread adds items of its
+ * own, generated with a different seed, and starts over once it has added
+ * them all.
+ * @author Greg
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ConcurrentIndexBenchmark {
+
+	// items each thread adds before it starts again from its first.
+	private static final int ITEMS_PER_THREAD = 1 << 16;
+	private static final int NUM_OF_QUERIES = 1024;
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+
+		@Param({ "100" })
+		int inputSize;
+
+		@Param({ "20" })
+		int numOfBands;
+
+		@Param({ "6" })
+		int sizeOfBands;
+
+		@Param({ "100000" })
+		int indexSize;
+
+		Item[] items;
+		Item[] queries;
+		LSHImpl index;
+		final AtomicInteger nextThread = new AtomicInteger();
+
+		@Setup(Level.Trial)
+		public void generate() {
+			items = BenchmarkData.items(indexSize, inputSize, 42);
+			Item[] sample = new Item[NUM_OF_QUERIES];
+			System.arraycopy(items, 0, sample, 0, NUM_OF_QUERIES);
+			queries = BenchmarkData.queries(sample, 0.15, 43);
+		}
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			index = new LSHImpl(Math.max(64, numOfBands * sizeOfBands), sizeOfBands,
+					LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands * sizeOfBands, sizeOfBands));
+			index.addAll(Arrays.asList(items));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class PerThread {
+
+		Item[] items;
+		int nextItem;
+		int nextQuery;
+
+		@Setup(Level.Trial)
+		public void generate(Shared shared) {
+			// a different seed per thread, so threads add different items.
+			items = BenchmarkData.items(ITEMS_PER_THREAD, shared.inputSize, 1000 + shared.nextThread.getAndIncrement());
+		}
+
+		@Setup(Level.Iteration)
+		public void setUp() {
+			nextItem = 0;
+		}
+
+		LSHable nextItem() {
+			LSHable item = items[nextItem];
+			nextItem = (nextItem + 1) & (ITEMS_PER_THREAD - 1);
+			return item;
+		}
+
+		LSHable nextQuery(Shared shared) {
+			LSHable query = shared.queries[nextQuery];
+			nextQuery = (nextQuery + 1) & (NUM_OF_QUERIES - 1);
+			return query;
+		}
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void add(Shared shared, PerThread thread) {
+		shared.index.add(thread.nextItem());
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Collection<LSHable> search(Shared shared, PerThread thread) {
+		return shared.index.search(thread.nextQuery(shared), 70);
+	}
+
+	/**
+	 * One thread adding while three search.
+	 */
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedAdd(Shared shared, PerThread thread) {
+		shared.index.add(thread.nextItem());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public Collection<LSHable> mixedSearch(Shared shared, PerThread thread) {
+		return shared.index.search(thread.nextQuery(shared), 70);
+	}
+}
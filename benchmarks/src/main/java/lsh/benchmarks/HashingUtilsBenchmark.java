@@ -0,0 +1,93 @@
+package lsh.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lsh.strategies.HashingUtils;
+import lsh.strategies.MurmurHash;
+
+/**
+ * The helpers every strategy runs after computing its minhashes: bands to
+ * buckets and minhashes to signatures, plus the byte-array MurmurHash. Each
+ * benchmark only varies the parameters its state declares.
+ * @author Greg
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingUtilsBenchmark {
+
+	@State(Scope.Thread)
+	public static class MinHashes {
+
+		@Param({ "10", "20", "40" })
+		int numOfBands;
+
+		@Param({ "3", "6", "10" })
+		int sizeOfBands;
+
+		int[] minHashes;
+		// as many as the minhashes fill, up to 512 bits.
+		int signatureWords;
+
+		@Setup
+		public void setUp() {
+			Random random = new Random(42);
+			minHashes = new int[numOfBands * sizeOfBands];
+			for (int i = 0; i < minHashes.length; i++) {
+				minHashes[i] = random.nextInt();
+			}
+			signatureWords = Math.max(1, Math.min(8, minHashes.length / 64));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Bytes {
+
+		@Param({ "8", "64", "1024" })
+		int inputSize;
+
+		byte[] bytes;
+
+		@Setup
+		public void setUp() {
+			bytes = new byte[inputSize];
+			new Random(42).nextBytes(bytes);
+		}
+	}
+
+	@Benchmark
+	public int[] getBuckets(MinHashes state) {
+		return HashingUtils.getBuckets(state.minHashes, state.sizeOfBands);
+	}
+
+	@Benchmark
+	public long getSignature(MinHashes state) {
+		return HashingUtils.getSignature(state.minHashes);
+	}
+
+	@Benchmark
+	public long[] getWideSignature(MinHashes state) {
+		return HashingUtils.getSignature(state.minHashes, state.signatureWords);
+	}
+
+	@Benchmark
+	public int murmurHash32(Bytes state) {
+		return MurmurHash.hash32(state.bytes, state.bytes.length);
+	}
+}
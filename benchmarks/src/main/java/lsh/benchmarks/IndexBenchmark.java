@@ -0,0 +1,130 @@
+package lsh.benchmarks;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lsh.LSHable;
+import lsh.benchmarks.BenchmarkData.Item;
+import lsh.impl.LSHImpl;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * LSHImpl.add and LSHImpl.search on one thread. See
+ * ConcurrentIndexBenchmark for several.
+ * @author Greg
+ *
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class IndexBenchmark {
+
+	@State(Scope.Thread)
+	public static class Config {
+
+		@Param({ "10", "100", "1000" })
+		int inputSize;
+
+		@Param({ "10", "20", "40" })
+		int numOfBands;
+
+		@Param({ "3", "6", "10" })
+		int sizeOfBands;
+
+		LSHImpl newIndex() {
+			int numOfMinHashes = Math.max(64, numOfBands * sizeOfBands);
+			return new LSHImpl(numOfMinHashes, sizeOfBands, LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands * sizeOfBands, sizeOfBands));
+		}
+	}
+
+	/**
+	 * A new, empty index for each iteration, which adds one batch of
+	 * distinct items, so every iteration measures the same growth.
+	 */
+	@State(Scope.Thread)
+	public static class Empty {
+
+		static final int BATCH_SIZE = 20000;
+
+		LSHImpl index;
+		Item[] items;
+		int next;
+
+		@Setup(Level.Trial)
+		public void generate(Config config) {
+			items = BenchmarkData.items(BATCH_SIZE, config.inputSize, 42);
+		}
+
+		@Setup(Level.Iteration)
+		public void setUp(Config config) {
+			index = config.newIndex();
+			next = 0;
+		}
+	}
+
+	/**
+	 * An index of indexSize items, searched for with altered copies of them.
+	 */
+	@State(Scope.Thread)
+	public static class Full {
+
+		private static final int NUM_OF_QUERIES = 1024;
+
+		@Param({ "10000", "100000" })
+		int indexSize;
+
+		LSHImpl index;
+		Item[] queries;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setUp(Config config) {
+			Item[] items = BenchmarkData.items(indexSize, config.inputSize, 42);
+			index = config.newIndex();
+			for (Item item : items) {
+				index.add(item);
+			}
+			Item[] sample = new Item[NUM_OF_QUERIES];
+			System.arraycopy(items, 0, sample, 0, NUM_OF_QUERIES);
+			queries = BenchmarkData.queries(sample, 0.15, 43);
+		}
+
+		LSHable nextQuery() {
+			LSHable query = queries[next];
+			next = (next + 1) & (NUM_OF_QUERIES - 1);
+			return query;
+		}
+	}
+
+	/**
+	 * Reported per batch of Empty.BATCH_SIZE adds.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5, batchSize = Empty.BATCH_SIZE)
+	@Measurement(iterations = 10, batchSize = Empty.BATCH_SIZE)
+	public void add(Empty state) {
+		state.index.add(state.items[state.next++]);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Collection<LSHable> search(Full state) {
+		return state.index.search(state.nextQuery(), 70);
+	}
+}
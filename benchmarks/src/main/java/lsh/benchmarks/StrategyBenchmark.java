@@ -0,0 +1,90 @@
+package lsh.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lsh.HashingResult;
+import lsh.LSHable;
+import lsh.strategies.GregsStrategy;
+import lsh.strategies.LSHStrategy;
+import lsh.strategies.OnePermutationStrategy;
+import lsh.strategies.RandomHashStrategy;
+
+/**
+ * Cost of hashing one item with each strategy. Items are cycled through so
+ * the strategies don't keep hashing one array that stays in cache.
+ * @author Greg
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StrategyBenchmark {
+
+	private static final int NUM_OF_ITEMS = 1024;
+
+	@Param({ "10", "100", "1000" })
+	int inputSize;
+
+	@Param({ "10", "20", "40" })
+	int numOfBands;
+
+	@Param({ "3", "6", "10" })
+	int sizeOfBands;
+
+	private RandomHashStrategy randomHashStrategy;
+	private GregsStrategy gregsStrategy;
+	private OnePermutationStrategy onePermutationStrategy;
+	private LSHable[] items;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		int numOfMinhashes = numOfBands * sizeOfBands;
+		randomHashStrategy = LSHStrategy.STRATEGIES.randomHashStrategy(numOfMinhashes, sizeOfBands);
+		gregsStrategy = new GregsStrategy(numOfMinhashes, sizeOfBands, numOfMinhashes * 5, Collections.<LSHable>emptySet());
+		onePermutationStrategy = LSHStrategy.STRATEGIES.onePermutationStrategy(numOfMinhashes, sizeOfBands);
+		items = BenchmarkData.items(NUM_OF_ITEMS, inputSize, 42);
+	}
+
+	@Benchmark
+	public HashingResult randomHashStrategy() {
+		return randomHashStrategy.hash(nextItem());
+	}
+
+	@Benchmark
+	public HashingResult randomHashStrategyWithMinHashes() {
+		return randomHashStrategy.hashWithMinHashes(nextItem());
+	}
+
+	@Benchmark
+	public HashingResult gregsStrategy() {
+		return gregsStrategy.hash(nextItem());
+	}
+
+	@Benchmark
+	public HashingResult onePermutationStrategy() {
+		return onePermutationStrategy.hash(nextItem());
+	}
+
+	private LSHable nextItem() {
+		LSHable item = items[next];
+		next = (next + 1) & (NUM_OF_ITEMS - 1);
+		return item;
+	}
+}
@@ -0,0 +1,24 @@
+package lsh.eviction;
+
+/**
+ * Base class for policies with a maximum number of entries and/or bytes.
+ * @author Greg
+ *
+ */
+abstract class BudgetedEvictionPolicy implements EvictionPolicy {
+
+	private final long maxEntries;
+	private final long maxBytes;
+
+	BudgetedEvictionPolicy(long maxEntries, long maxBytes) {
+		if (maxEntries <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("Budgets must be positive");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public boolean overBudget(long numOfItems, long memoryUsage) {
+		return numOfItems > maxEntries || memoryUsage > maxBytes;
+	}
+}
@@ -0,0 +1,70 @@
+package lsh.eviction;
+
+import lsh.LSHable;
+
+/**
+ * Decides when an index has grown too large and which items to evict from it.
+ * 
+ * The index tells the policy about every item it adds, returns from a search
+ * or removes. After each add it asks the policy whether it is over budget,
+ * and if so evicts a few victims, so eviction happens incrementally as data
+ * arrives instead of in big sweeps over the index.
+ * 
+ * Implementations must be thread-safe.
+ * @author Greg
+ *
+ */
+public interface EvictionPolicy {
+
+	long NO_LIMIT = Long.MAX_VALUE;
+
+	void added(LSHable item);
+
+	/**
+	 * Called for every item a search returns.
+	 */
+	void hit(LSHable item);
+
+	void removed(LSHable item);
+
+	/**
+	 * @param numOfItems
+	 *            : Items currently in the index.
+	 * @param memoryUsage
+	 *            : The index's estimate of its own heap use, in bytes.
+	 * @return true if items should be evicted.
+	 */
+	boolean overBudget(long numOfItems, long memoryUsage);
+
+	/**
+	 * Picks the next item to evict. The policy stops tracking it; the caller is
+	 * responsible for removing it from the index.
+	 * @return the victim, or null if the policy isn't tracking any items.
+	 */
+	LSHable selectVictim();
+
+	public static class POLICIES {
+
+		/**
+		 * Evicts the oldest items first.
+		 * @param maxEntries
+		 *            : or NO_LIMIT
+		 * @param maxBytes
+		 *            : or NO_LIMIT
+		 */
+		public static EvictionPolicy fifo(long maxEntries, long maxBytes) {
+			return new FifoEvictionPolicy(maxEntries, maxBytes);
+		}
+
+		/**
+		 * Evicts the items that searches returned least recently first.
+		 * @param maxEntries
+		 *            : or NO_LIMIT
+		 * @param maxBytes
+		 *            : or NO_LIMIT
+		 */
+		public static EvictionPolicy lru(long maxEntries, long maxBytes) {
+			return new LruEvictionPolicy(maxEntries, maxBytes);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package lsh.eviction;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lsh.LSHable;
+
+/**
+ * Evicts items in insertion order.
+ * 
+ * Removed items are only dropped from the queue lazily, when they reach its
+ * head, so removal is O(1).
+ * @author Greg
+ *
+ */
+class FifoEvictionPolicy extends BudgetedEvictionPolicy {
+
+	private final Queue<LSHable> insertionOrder = new ConcurrentLinkedQueue<LSHable>();
+	private final Set<LSHable> live = ConcurrentHashMap.newKeySet();
+
+	FifoEvictionPolicy(long maxEntries, long maxBytes) {
+		super(maxEntries, maxBytes);
+	}
+
+	@Override
+	public void added(LSHable item) {
+		if (live.add(item))
+			insertionOrder.offer(item);
+	}
+
+	@Override
+	public void hit(LSHable item) {
+		// insertion order only.
+	}
+
+	@Override
+	public void removed(LSHable item) {
+		live.remove(item);
+	}
+
+	@Override
+	public LSHable selectVictim() {
+		LSHable item;
+		while ((item = insertionOrder.poll()) != null) {
+			if (live.remove(item))
+				return item;
+		}
+		return null;
+	}
+}
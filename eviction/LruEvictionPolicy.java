@@ -0,0 +1,81 @@
+package lsh.eviction;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lsh.LSHable;
+
+/**
+ * Approximates least-recently-hit eviction with the CLOCK algorithm.
+ * 
+ * A search hit only sets a flag on the item's entry, so concurrent searches
+ * never contend on a shared list. When a victim is needed, entries are taken
+ * from the head of the queue; an entry that was hit since it was last
+ * examined has its flag cleared and goes to the back of the queue instead of
+ * being evicted.
+ * @author Greg
+ *
+ */
+class LruEvictionPolicy extends BudgetedEvictionPolicy {
+
+	/*
+	 * Bounds the work done for one victim. After this many second chances the
+	 * next entry is evicted even if it was hit.
+	 */
+	private static final int MAX_SECOND_CHANCES = 64;
+
+	private final ConcurrentHashMap<LSHable, Entry> entries = new ConcurrentHashMap<LSHable, Entry>();
+	private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+
+	LruEvictionPolicy(long maxEntries, long maxBytes) {
+		super(maxEntries, maxBytes);
+	}
+
+	@Override
+	public void added(LSHable item) {
+		Entry entry = new Entry(item);
+		if (entries.putIfAbsent(item, entry) == null)
+			clock.offer(entry);
+	}
+
+	@Override
+	public void hit(LSHable item) {
+		Entry entry = entries.get(item);
+		// checking first avoids writing to a shared cache line on every hit.
+		if (entry != null && !entry.referenced)
+			entry.referenced = true;
+	}
+
+	@Override
+	public void removed(LSHable item) {
+		entries.remove(item);
+	}
+
+	@Override
+	public LSHable selectVictim() {
+		int secondChances = 0;
+		Entry entry;
+		while ((entry = clock.poll()) != null) {
+			if (entries.get(entry.item) != entry)
+				continue; // removed, or removed and added again.
+			if (entry.referenced && secondChances++ < MAX_SECOND_CHANCES) {
+				entry.referenced = false;
+				clock.offer(entry);
+				continue;
+			}
+			if (entries.remove(entry.item, entry))
+				return entry.item;
+		}
+		return null;
+	}
+
+	private static class Entry {
+		final LSHable item;
+		volatile boolean referenced = false;
+
+		Entry(LSHable item) {
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package lsh.impl;
+
+import java.util.Arrays;
+
+import lsh.strategies.IntHash;
+
+/**
+ * An int to long-list hash table, used to map bucket keys to the entries
+ * stored in them.
+ *
+ * Keys live in flat, open-addressed (linear probing) arrays, so no key is
+ * boxed and there is no node object per bucket. A bucket holding a single
+ * value stores it inline in its slot. Larger buckets point into big shared
+ * long[] slabs, where each bucket owns a power-of-two sized chunk. Chunks are
+ * doubled when full and the old chunk goes on a free list for reuse, so
+ * growing a bucket is amortized O(1).
+ *
+ * Not thread-safe; callers are expected to guard it.
+ *
+ * @author Greg
+ *
+ */
+class BucketTable {
+
+	/*
+	 * A chunk address packs the slab index into the high bits and the offset
+	 * in the slab into the low SLAB_SHIFT bits. Chunks bigger than a slab get
+	 * a slab of their own, at offset 0.
+	 */
+	private static final int SLAB_SHIFT = 16;
+	private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+	private static final int SLAB_MASK = SLAB_SIZE - 1;
+	private static final int NO_CHUNK = -1;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	// slot arrays. A size of 0 marks an empty slot.
+	private int[] keys;
+	private int[] sizes;
+	private long[] values;
+	private int mask;
+	private int numOfKeys;
+	private long numOfValues;
+	private int resizeThreshold;
+	private final int minCapacity;
+
+	private long[][] slabs = new long[4][];
+	private int numOfSlabs = 0;
+	private int bumpSlab = -1;
+	private int bumpOffset = SLAB_SIZE;
+	// free chunks per power-of-two size class; the next pointer is kept in the chunk itself.
+	private final int[] freeChunks = new int[32];
+	private long allocatedChunkLongs = 0;
+	private long freeChunkLongs = 0;
+
+	BucketTable() {
+		this(1024);
+	}
+
+	BucketTable(int expectedKeys) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedKeys / LOAD_FACTOR)) - 1) << 1;
+		minCapacity = capacity;
+		allocateSlots(capacity);
+		Arrays.fill(freeChunks, NO_CHUNK);
+	}
+
+	/**
+	 * Adds a value to a bucket unless the bucket already contains it.
+	 * @param key
+	 * @param value
+	 * @return true if the value was added.
+	 */
+	boolean add(int key, long value) {
+		int slot = indexOf(key);
+		if (sizes[slot] == 0) {
+			keys[slot] = key;
+			sizes[slot] = 1;
+			values[slot] = value;
+			numOfValues++;
+			if (++numOfKeys > resizeThreshold)
+				rehash(keys.length << 1);
+			return true;
+		}
+
+		int size = sizes[slot];
+		if (size == 1) {
+			if (values[slot] == value)
+				return false;
+			int chunk = allocateChunk(1);
+			long[] slab = slabs[chunk >>> SLAB_SHIFT];
+			int offset = chunk & SLAB_MASK;
+			slab[offset] = values[slot];
+			slab[offset + 1] = value;
+			values[slot] = chunk;
+			sizes[slot] = 2;
+			numOfValues++;
+			return true;
+		}
+
+		int chunk = (int) values[slot];
+		long[] slab = slabs[chunk >>> SLAB_SHIFT];
+		int offset = chunk & SLAB_MASK;
+		for (int i = 0; i < size; i++) {
+			if (slab[offset + i] == value)
+				return false;
+		}
+		if (Integer.bitCount(size) == 1) {
+			// chunk is full; move to a chunk twice the size.
+			int sizeClass = Integer.numberOfTrailingZeros(size);
+			int newChunk = allocateChunk(sizeClass + 1);
+			long[] newSlab = slabs[newChunk >>> SLAB_SHIFT];
+			int newOffset = newChunk & SLAB_MASK;
+			System.arraycopy(slab, offset, newSlab, newOffset, size);
+			freeChunk(chunk, sizeClass);
+			values[slot] = newChunk;
+			slab = newSlab;
+			offset = newOffset;
+		}
+		slab[offset + size] = value;
+		sizes[slot] = size + 1;
+		numOfValues++;
+		return true;
+	}
+
+	/**
+	 * Removes a value from a bucket. The bucket is removed once it's empty, and
+	 * the slot arrays are halved once they are a quarter as full as they may
+	 * get, so memory freed by removes can be given back.
+	 * @param key
+	 * @param value
+	 * @return true if the value was present.
+	 */
+	boolean remove(int key, long value) {
+		int slot = indexOf(key);
+		int size = sizes[slot];
+		if (size == 0)
+			return false;
+		if (size == 1) {
+			if (values[slot] != value)
+				return false;
+			deleteSlot(slot);
+			numOfValues--;
+			return true;
+		}
+
+		int chunk = (int) values[slot];
+		long[] slab = slabs[chunk >>> SLAB_SHIFT];
+		int offset = chunk & SLAB_MASK;
+		int position = -1;
+		for (int i = 0; i < size; i++) {
+			if (slab[offset + i] == value) {
+				position = i;
+				break;
+			}
+		}
+		if (position == -1)
+			return false;
+		// order within a bucket doesn't matter, so fill the gap with the last value.
+		slab[offset + position] = slab[offset + size - 1];
+		size--;
+		numOfValues--;
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(size);
+		if (size == 1) {
+			values[slot] = slab[offset];
+			freeChunk(chunk, 1);
+		} else if (Integer.bitCount(size) == 1) {
+			/*
+			 * Keep every chunk exactly the next power of two up from its size;
+			 * add relies on this to know when a chunk is full.
+			 */
+			int newChunk = allocateChunk(sizeClass - 1);
+			System.arraycopy(slab, offset, slabs[newChunk >>> SLAB_SHIFT], newChunk & SLAB_MASK, size);
+			freeChunk(chunk, sizeClass);
+			values[slot] = newChunk;
+		}
+		sizes[slot] = size;
+		return true;
+	}
+
+	/**
+	 * Returns the slot holding a key, or -1 if the key isn't present. Use with
+	 * size(slot) and get(slot, i) to read a bucket without copying it.
+	 * @param key
+	 * @return
+	 */
+	int find(int key) {
+		int slot = indexOf(key);
+		return sizes[slot] == 0 ? -1 : slot;
+	}
+
+	int size(int slot) {
+		return sizes[slot];
+	}
+
+	long get(int slot, int i) {
+		if (sizes[slot] == 1)
+			return values[slot];
+		int chunk = (int) values[slot];
+		return slabs[chunk >>> SLAB_SHIFT][(chunk & SLAB_MASK) + i];
+	}
+
+	/**
+	 * The number of slots; slots are numbered 0 to capacity() - 1. Together with
+	 * size(slot) and keyAt(slot) this allows iterating over every bucket.
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * For testing/debugging
+	 * @return the number of non-empty buckets.
+	 */
+	int numOfKeys() {
+		return numOfKeys;
+	}
+
+	long numOfValues() {
+		return numOfValues;
+	}
+
+	/**
+	 * Approximate heap used by the table, in bytes. Chunks on the free lists
+	 * are left out, since they are reused before any new ones are allocated.
+	 * @return
+	 */
+	long memoryUsage() {
+		return (long) keys.length * (4 + 4 + 8) + (allocatedChunkLongs - freeChunkLongs) * 8;
+	}
+
+	/**
+	 * Finds the slot for a key: either the slot it occupies, or the empty slot
+	 * where it would be inserted.
+	 */
+	private int indexOf(int key) {
+		int slot = IntHash.fmix32(key) & mask;
+		while (sizes[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Empties a slot, shifting back any later keys in its probe sequence so that
+	 * lookups never stop early at the hole.
+	 */
+	private void deleteSlot(int slot) {
+		int hole = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (sizes[next] == 0)
+				break;
+			int home = IntHash.fmix32(keys[next]) & mask;
+			// the key at next can fill the hole unless its home lies cyclically in (hole, next].
+			boolean homeBetween = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+			if (!homeBetween) {
+				keys[hole] = keys[next];
+				sizes[hole] = sizes[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		sizes[hole] = 0;
+		numOfKeys--;
+		if (keys.length > minCapacity && numOfKeys < resizeThreshold >> 2)
+			rehash(keys.length >> 1);
+	}
+
+	private void allocateSlots(int capacity) {
+		keys = new int[capacity];
+		sizes = new int[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldSizes = sizes;
+		long[] oldValues = values;
+		allocateSlots(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldSizes[i] == 0)
+				continue;
+			int slot = indexOf(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			sizes[slot] = oldSizes[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Returns the address of a free chunk of 2^sizeClass longs.
+	 */
+	private int allocateChunk(int sizeClass) {
+		int chunk = freeChunks[sizeClass];
+		if (chunk != NO_CHUNK) {
+			freeChunks[sizeClass] = (int) slabs[chunk >>> SLAB_SHIFT][chunk & SLAB_MASK];
+			freeChunkLongs -= 1 << sizeClass;
+			return chunk;
+		}
+		int length = 1 << sizeClass;
+		allocatedChunkLongs += length;
+		if (length > SLAB_SIZE) {
+			// too big to share a slab.
+			return addSlab(new long[length]) << SLAB_SHIFT;
+		}
+		if (bumpOffset + length > SLAB_SIZE) {
+			bumpSlab = addSlab(new long[SLAB_SIZE]);
+			bumpOffset = 0;
+		}
+		chunk = (bumpSlab << SLAB_SHIFT) | bumpOffset;
+		bumpOffset += length;
+		return chunk;
+	}
+
+	private void freeChunk(int chunk, int sizeClass) {
+		slabs[chunk >>> SLAB_SHIFT][chunk & SLAB_MASK] = freeChunks[sizeClass];
+		freeChunks[sizeClass] = chunk;
+		freeChunkLongs += 1 << sizeClass;
+	}
+
+	private int addSlab(long[] slab) {
+		if (numOfSlabs == slabs.length)
+			slabs = Arrays.copyOf(slabs, slabs.length * 2);
+		slabs[numOfSlabs] = slab;
+		return numOfSlabs++;
+	}
+}
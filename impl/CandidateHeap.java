@@ -0,0 +1,159 @@
+package lsh.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bounded max-heap of (distance, candidate) pairs held in primitive arrays,
+ * for keeping the k closest candidates seen so far. A candidate is any long
+ * identifying it to the caller. The root is the worst candidate kept; ties on
+ * distance are broken by the smaller candidate.
+ *
+ * Each candidate can carry a value, kept in the slot it occupies, so
+ * evicting a candidate frees its value too and the heap never holds more
+ * than capacity of them.
+ * @author Greg
+ *
+ */
+class CandidateHeap<T> {
+
+	private final int[] distances;
+	private final long[] candidates;
+	private final Object[] values;
+	private int size = 0;
+
+	CandidateHeap(int capacity) {
+		this.distances = new int[capacity];
+		this.candidates = new long[capacity];
+		this.values = new Object[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isFull() {
+		return size == distances.length;
+	}
+
+	/**
+	 * The largest distance kept. Only meaningful when the heap isn't empty.
+	 */
+	int worstDistance() {
+		return distances[0];
+	}
+
+	/**
+	 * Whether a candidate would be kept if offered.
+	 */
+	boolean accepts(int distance, long candidate) {
+		return !isFull() || worse(distances[0], candidates[0], distance, candidate);
+	}
+
+	/**
+	 * Keeps a candidate if it is among the best seen, evicting the worst one
+	 * if the heap is full. The caller makes sure each candidate is only
+	 * offered once.
+	 */
+	void offer(int distance, long candidate) {
+		offer(distance, candidate, null);
+	}
+
+	void offer(int distance, long candidate, T value) {
+		if (!isFull()) {
+			distances[size] = distance;
+			candidates[size] = candidate;
+			values[size] = value;
+			siftUp(size++);
+		} else if (worse(distances[0], candidates[0], distance, candidate)) {
+			distances[0] = distance;
+			candidates[0] = candidate;
+			values[0] = value;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Empties the heap, returning its candidates closest first.
+	 */
+	long[] drainSorted() {
+		long[] sorted = new long[size];
+		drain(sorted, null);
+		return sorted;
+	}
+
+	/**
+	 * Empties the heap, returning its candidates' values closest first.
+	 */
+	List<T> drainValues() {
+		@SuppressWarnings("unchecked")
+		T[] sorted = (T[]) new Object[size];
+		drain(null, sorted);
+		return new ArrayList<T>(Arrays.asList(sorted));
+	}
+
+	/**
+	 * Pops the root into the end of whichever arrays are given, until the
+	 * heap is empty.
+	 */
+	private void drain(long[] sortedCandidates, Object[] sortedValues) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (sortedCandidates != null)
+				sortedCandidates[i] = candidates[0];
+			if (sortedValues != null)
+				sortedValues[i] = values[0];
+			size--;
+			distances[0] = distances[size];
+			candidates[0] = candidates[size];
+			values[0] = values[size];
+			values[size] = null;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * True if (distanceA, candidateA) ranks below (distanceB, candidateB).
+	 */
+	private static boolean worse(int distanceA, long candidateA, int distanceB, long candidateB) {
+		return distanceA > distanceB || (distanceA == distanceB && candidateA > candidateB);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(distances[i], candidates[i], distances[parent], candidates[parent]))
+				return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int left = 2 * i + 1;
+			if (left >= size)
+				return;
+			int worst = left;
+			int right = left + 1;
+			if (right < size && worse(distances[right], candidates[right], distances[left], candidates[left]))
+				worst = right;
+			if (!worse(distances[worst], candidates[worst], distances[i], candidates[i]))
+				return;
+			swap(i, worst);
+			i = worst;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+		long candidate = candidates[i];
+		candidates[i] = candidates[j];
+		candidates[j] = candidate;
+		Object value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+}
@@ -0,0 +1,68 @@
+package lsh.impl;
+
+/**
+ * An immutable copy of a histogram: how many values were recorded, their
+ * mean and maximum, and their percentiles. Percentiles are accurate to
+ * about 3%, and never overstate the maximum.
+ * @author Greg
+ *
+ */
+public final class Distribution {
+
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	Distribution(long[] counts, long sum, long max) {
+		long count = 0;
+		for (long c : counts) {
+			count += c;
+		}
+		this.counts = counts;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * The value at or below which the given share of the recorded values
+	 * fall.
+	 * @param percentile
+	 *            : Between 0 and 100.
+	 * @return 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(max, Histogram.highestValueAt(i));
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + Math.round(getMean())
+		+ " p50=" + getPercentile(50) + " p90=" + getPercentile(90) + " p99=" + getPercentile(99)
+		+ " p99.9=" + getPercentile(99.9) + " max=" + max;
+	}
+}
@@ -5,9 +5,18 @@ import lsh.HashingResult;
 public class HashingResultImpl implements HashingResult{
 
 	private final long signature;
+	// only set for signatures wider than 64 bits.
+	private final long[] signatureWords;
 	private final int[] buckets;
 	public HashingResultImpl(long signature, int[] buckets){
 		this.signature = signature;
+		this.signatureWords = null;
+		this.buckets = buckets;
+	}
+	
+	public HashingResultImpl(long[] signatureWords, int[] buckets){
+		this.signature = signatureWords[0];
+		this.signatureWords = signatureWords.length > 1 ? signatureWords : null;
 		this.buckets = buckets;
 	}
 	
@@ -21,5 +30,9 @@ public class HashingResultImpl implements HashingResult{
 		return buckets;
 	}
 
+	@Override
+	public long[] getSignatureWords() {
+		return signatureWords != null ? signatureWords : new long[]{signature};
+	}
 	
 }
@@ -0,0 +1,81 @@
+package lsh.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs, such as latencies in
+ * nanoseconds or candidate counts, that any number of threads can record
+ * into at once.
+ *
+ * Buckets are log-linear: values below 64 each get their own bucket, and
+ * every power of two above that is split into 32 buckets, so a value is
+ * known to within about 3%. The whole range of longs takes 1888 counters.
+ * Recording is one atomic increment plus the striped sum and max, and never
+ * allocates.
+ * @author Greg
+ *
+ */
+final class Histogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	static final int NUM_OF_BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_OF_BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Records a value count times.
+	 */
+	void record(long value, long count) {
+		if (value < 0)
+			value = 0;
+		counts.getAndAdd(indexOf(value), count);
+		sum.add(value * count);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Copies the counts. Values recorded while copying may be partly
+	 * included.
+	 */
+	Distribution snapshot() {
+		long[] copy = new long[NUM_OF_BUCKETS];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Distribution(copy, sum.sum(), max.get());
+	}
+
+	void reset() {
+		for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.reset();
+	}
+
+	static int indexOf(long value) {
+		// values below 2 * SUB_COUNT have a shift of 0 and are their own index.
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * The largest value that goes in a bucket.
+	 */
+	static long highestValueAt(int index) {
+		if (index < 2 * SUB_COUNT)
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		long subBucket = index % SUB_COUNT + SUB_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
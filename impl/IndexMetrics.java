@@ -0,0 +1,101 @@
+package lsh.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and histograms an LSHImpl records as it is used. Counters are
+ * LongAdders, which stripe themselves under contention, and histograms are
+ * lock-free, so recording never blocks and never allocates.
+ *
+ * While disabled, start returns NOT_TIMED without reading the clock, and the
+ * record methods ignore any operation started that way, so an operation
+ * that started before the switch is never half recorded.
+ * @author Greg
+ *
+ */
+final class IndexMetrics {
+
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	private volatile boolean enabled = true;
+
+	final LongAdder adds = new LongAdder();
+	final LongAdder searches = new LongAdder();
+	final LongAdder candidatesScanned = new LongAdder();
+	final LongAdder candidatesReturned = new LongAdder();
+	final Histogram addLatency = new Histogram();
+	final Histogram batchLatency = new Histogram();
+	final Histogram searchLatency = new Histogram();
+	final Histogram scannedPerSearch = new Histogram();
+	final Histogram returnedPerSearch = new Histogram();
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the time an operation started, or NOT_TIMED.
+	 */
+	long start() {
+		return enabled ? System.nanoTime() : NOT_TIMED;
+	}
+
+	void recordAdd(long start) {
+		if (start == NOT_TIMED)
+			return;
+		long elapsed = System.nanoTime() - start;
+		adds.increment();
+		addLatency.record(elapsed);
+	}
+
+	/**
+	 * Records numOfItems adds made together as one batch. Only the batch is
+	 * timed, so its items are counted but kept out of the add latencies.
+	 */
+	void recordBatch(long start, int numOfItems) {
+		if (start == NOT_TIMED || numOfItems == 0)
+			return;
+		long elapsed = System.nanoTime() - start;
+		adds.add(numOfItems);
+		batchLatency.record(elapsed);
+	}
+
+	/**
+	 * @param scanned
+	 *            : The bucket entries looked at, counting an item once for
+	 *            every bucket it was found in.
+	 * @param returned
+	 *            : The items that passed the filter.
+	 */
+	void recordSearch(long start, int scanned, int returned) {
+		if (start == NOT_TIMED)
+			return;
+		long elapsed = System.nanoTime() - start;
+		searches.increment();
+		candidatesScanned.add(scanned);
+		candidatesReturned.add(returned);
+		searchLatency.record(elapsed);
+		scannedPerSearch.record(scanned);
+		returnedPerSearch.record(returned);
+	}
+
+	/**
+	 * Clears every counter and histogram. Operations running meanwhile may
+	 * be partly cleared.
+	 */
+	void reset() {
+		adds.reset();
+		searches.reset();
+		candidatesScanned.reset();
+		candidatesReturned.reset();
+		addLatency.reset();
+		batchLatency.reset();
+		searchLatency.reset();
+		scannedPerSearch.reset();
+		returnedPerSearch.reset();
+	}
+}
@@ -0,0 +1,178 @@
+package lsh.impl;
+
+import java.util.Arrays;
+
+import lsh.LSHable;
+import lsh.strategies.HashingUtils;
+
+/**
+ * Gives every indexed item a dense int id, and keeps the items and their
+ * signatures in arrays indexed by it. The signatures are stored flat, in
+ * pages of long[], so filtering a candidate by its signature never touches
+ * the item itself. Signatures of b-bit fingerprints are packed the same way,
+ * and their distance counts differing fingerprints rather than bits.
+ *
+ * Released ids are reused, so the id space stays about as big as the
+ * largest number of items indexed at once. Pages are never moved once
+ * allocated; growing only copies the page directory.
+ *
+ * Writes are synchronized. Reads aren't: a reader must have learned the id
+ * through something that orders it after register, such as a bucket lock,
+ * and the item must not be released while it is reading.
+ * @author Greg
+ *
+ */
+final class ItemRegistry {
+
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final int signatureWords;
+	private final int fingerprintBits;
+	private volatile LSHable[][] itemPages = new LSHable[16][];
+	private volatile long[][] signaturePages = new long[16][];
+
+	// guarded by this
+	private int nextId = 0;
+	private int numOfItems = 0;
+	private int[] freeIds = new int[16];
+	private int numOfFreeIds = 0;
+	// ids released while a scan is running; they're only reused once it ends.
+	private int[] parkedIds = new int[16];
+	private int numOfParkedIds = 0;
+	private int activeScans = 0;
+
+	/**
+	 * @param signatureWords
+	 *            : The number of longs in each signature.
+	 * @param fingerprintBits
+	 *            : The strategy's getFingerprintBits.
+	 */
+	ItemRegistry(int signatureWords, int fingerprintBits) {
+		this.signatureWords = signatureWords;
+		this.fingerprintBits = fingerprintBits;
+	}
+
+	int signatureWords() {
+		return signatureWords;
+	}
+
+	/**
+	 * Stores an item and its signature under a free id.
+	 * @return the id.
+	 */
+	synchronized int register(LSHable item, long[] signature) {
+		int id = numOfFreeIds > 0 ? freeIds[--numOfFreeIds] : allocateId();
+		System.arraycopy(signature, 0, signaturePages[id >>> PAGE_SHIFT], (id & PAGE_MASK) * signatureWords, signatureWords);
+		itemPages[id >>> PAGE_SHIFT][id & PAGE_MASK] = item;
+		numOfItems++;
+		return id;
+	}
+
+	/**
+	 * Frees an id. The caller must make sure nothing can reach it any more.
+	 */
+	synchronized void release(int id) {
+		itemPages[id >>> PAGE_SHIFT][id & PAGE_MASK] = null;
+		numOfItems--;
+		if (activeScans > 0) {
+			if (numOfParkedIds == parkedIds.length)
+				parkedIds = Arrays.copyOf(parkedIds, numOfParkedIds * 2);
+			parkedIds[numOfParkedIds++] = id;
+		} else {
+			pushFreeId(id);
+		}
+	}
+
+	LSHable get(int id) {
+		return itemPages[id >>> PAGE_SHIFT][id & PAGE_MASK];
+	}
+
+	/**
+	 * The first word of an item's signature.
+	 */
+	long signature(int id) {
+		return signaturePages[id >>> PAGE_SHIFT][(id & PAGE_MASK) * signatureWords];
+	}
+
+	/**
+	 * Copies every word of an item's signature into a buffer.
+	 */
+	void signature(int id, long[] buffer, int offset) {
+		System.arraycopy(signaturePages[id >>> PAGE_SHIFT], (id & PAGE_MASK) * signatureWords, buffer, offset, signatureWords);
+	}
+
+	/**
+	 * Number of bits, or fingerprints, by which an item's signature differs
+	 * from another one.
+	 */
+	int distance(int id, long[] signature) {
+		long[] page = signaturePages[id >>> PAGE_SHIFT];
+		int start = (id & PAGE_MASK) * signatureWords;
+		if (fingerprintBits > 1)
+			return HashingUtils.fingerprintDistance(page, start, signature, fingerprintBits);
+		if (signatureWords == 1)
+			return Long.bitCount(page[start] ^ signature[0]);
+		return HashingUtils.hammingDistance(page, start, signature);
+	}
+
+	/**
+	 * Stops released ids from being reused, so ids read during a scan keep
+	 * pointing at the same item until endScan. Calls may nest.
+	 */
+	synchronized void beginScan() {
+		activeScans++;
+	}
+
+	synchronized void endScan() {
+		if (--activeScans == 0) {
+			for (int i = 0; i < numOfParkedIds; i++) {
+				pushFreeId(parkedIds[i]);
+			}
+			numOfParkedIds = 0;
+		}
+	}
+
+	/**
+	 * Ids are all below this bound.
+	 */
+	synchronized int idLimit() {
+		return nextId;
+	}
+
+	/**
+	 * Approximate heap used by the registered items' slots, in bytes, not
+	 * counting the items themselves. Free slots are left out since they will
+	 * be reused before the registry grows again.
+	 */
+	synchronized long memoryUsage() {
+		return numOfItems * (4 + 8L * signatureWords);
+	}
+
+	private int allocateId() {
+		int id = nextId++;
+		int page = id >>> PAGE_SHIFT;
+		if ((id & PAGE_MASK) == 0) {
+			if (page == itemPages.length) {
+				// copy the directories before publishing them, so readers never see a missing page.
+				LSHable[][] items = Arrays.copyOf(itemPages, page * 2);
+				long[][] signatures = Arrays.copyOf(signaturePages, page * 2);
+				items[page] = new LSHable[PAGE_SIZE];
+				signatures[page] = new long[PAGE_SIZE * signatureWords];
+				signaturePages = signatures;
+				itemPages = items;
+			} else {
+				signaturePages[page] = new long[PAGE_SIZE * signatureWords];
+				itemPages[page] = new LSHable[PAGE_SIZE];
+			}
+		}
+		return id;
+	}
+
+	private void pushFreeId(int id) {
+		if (numOfFreeIds == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, numOfFreeIds * 2);
+		freeIds[numOfFreeIds++] = id;
+	}
+}
@@ -0,0 +1,24 @@
+package lsh.impl;
+
+import java.nio.ByteBuffer;
+
+import lsh.LSHable;
+
+/**
+ * Converts indexed items to and from bytes, so that an index can be written
+ * to disk and read back.
+ * @author Greg
+ *
+ */
+public interface ItemSerializer {
+
+	byte[] serialize(LSHable item);
+
+	/**
+	 * @param bytes
+	 *            : Positioned at the start of an item written by serialize,
+	 *            with its limit at the end of it. May be a read-only view of a
+	 *            mapped file, so copy out anything that has to outlive the call.
+	 */
+	LSHable deserialize(ByteBuffer bytes);
+}
@@ -1,36 +1,143 @@
 package lsh.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import lsh.HashingResult;
 import lsh.LSH;
 import lsh.LSHable;
+import lsh.MinHashingResult;
+import lsh.eviction.EvictionPolicy;
+import lsh.strategies.HashingUtils;
+import lsh.strategies.IntHash;
 import lsh.strategies.LSHStrategy;
+import lsh.strategies.MultiProbeStrategy;
 
+/**
+ * Concurrency: add and search may be called from any number of threads.
+ * 
+ * Buckets are split into independently locked stripes, so writers only
+ * contend when they touch the same stripe. An add is not atomic: while it is
+ * running, a concurrent search may find the item through some of its bands
+ * and not others. Once add returns, every later search sees the item in all
+ * of them. No add is ever lost. Adds and removes of the same signature are
+ * serialized.
+ * 
+ * Equal items: an item is indexed once however often it is added. Adding an
+ * item equal to one already indexed keeps the existing one, under its id,
+ * and only makes sure it is in all of its buckets, as replaying a logged add
+ * does.
+ * 
+ * Items are kept in an ItemRegistry under dense int ids, and buckets hold
+ * ids rather than references, packed with the high half of the item's
+ * signature. Searches filter on those bits and the registry's signatures,
+ * and only look items up once they've matched.
+ * 
+ * Fingerprints: with a strategy whose getFingerprintBits isn't 0, the
+ * registry's signatures are b-bit fingerprints of the minhashes, and a
+ * search keeps the items whose bias-corrected estimate of Jaccard similarity
+ * is at least matchThreshold percent. Smaller fingerprints fit more minhashes
+ * into the same signature width, and so into the same memory per item.
+ * 
+ * Memory: an EvictionPolicy can be set to keep the index within a budget.
+ * Items are then evicted a few at a time after each add, never in one sweep.
+ * 
+ * Durability: with a WriteAheadLog set, add and remove log the operation
+ * before applying it and only return once the log has accepted it. See
+ * WriteAheadLog for recovery, and checkpoint for taking snapshots.
+ * 
+ * Metrics: adds and searches are counted and timed as they run, unless
+ * switched off with setMetricsEnabled. getMetrics takes a snapshot, and
+ * registerMBean publishes them over JMX.
+ */
 public class LSHImpl implements LSH {
 
 	private final int numOfMinHashes;
 	private final int sizeOfBands;
 	private final LSHStrategy strategy;
+	private final ForkJoinPool pool;
+
+	private final StripedBucketTable buckets;
+	private final ItemRegistry registry;
+	// serializes adds and removes of the same signature; picked by lockFor.
+	private final Object[] signatureLocks;
+	/*
+	 * Ids an addAll is still filling in the buckets of, with the number of
+	 * addAlls doing so. They can't be removed until it has.
+	 */
+	private final ConcurrentHashMap<Integer, Integer> pendingIds = new ConcurrentHashMap<Integer, Integer>();
+	private final AtomicLong numOfItems = new AtomicLong();
+	private final IndexMetrics metrics = new IndexMetrics();
+	private volatile EvictionPolicy evictionPolicy;
+	private volatile WriteAheadLog writeAheadLog;
+	/*
+	 * Logged operations hold the read lock from logging until they've been
+	 * applied. checkpoint takes the write lock to rotate the log, so every
+	 * operation in an old segment is in the index before it is snapshotted.
+	 */
+	private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
 
-	private final ConcurrentHashMap<Integer, long[]> buckets;
-	private final ConcurrentHashMap<Long, Collection<LSHable>> signatureMap;
+	private static final int MAX_EVICTIONS_PER_ADD = 4;
+	private static final int SIGNATURE_LOCKS_PER_STRIPE = 16;
+	// buckets listed in a metrics snapshot.
+	private static final int NUM_OF_LARGEST_BUCKETS = 10;
+	// the signature bits kept in a bucket entry; the other half is the id.
+	private static final long ENTRY_SIGNATURE_MASK = 0xFFFFFFFF00000000L;
+
+	private final ThreadLocal<SearchScratch> searchScratch = new ThreadLocal<SearchScratch>() {
+		@Override
+		protected SearchScratch initialValue() {
+			return new SearchScratch();
+		}
+	};
 
 	/**
 	 * 
 	 * @param numOfMinHashes
 	 *            : More hashes are slower and take more memory but are more
-	 *            accurate. Min 64.
+	 *            accurate. Min 64. Searches go by the strategy's own
+	 *            getNumOfMinHashes, so this is only checked and kept in
+	 *            snapshots.
 	 * @param sizeOfBands
 	 *            : Wider bands are faster but less accurate.
 	 * @param strategy
 	 *            : The strategy used to generate minhashes and signatures.
 	 */
 	public LSHImpl(int numOfMinHashes, int sizeOfBands, LSHStrategy strategy) {
+		this(numOfMinHashes, sizeOfBands, strategy, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 
+	 * @param concurrencyLevel
+	 *            : The expected number of threads adding at the same time.
+	 *            Determines the number of bucket stripes.
+	 */
+	public LSHImpl(int numOfMinHashes, int sizeOfBands, LSHStrategy strategy, int concurrencyLevel) {
+		this(numOfMinHashes, sizeOfBands, strategy, concurrencyLevel, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            : The pool addAll and searchAll run on.
+	 */
+	public LSHImpl(int numOfMinHashes, int sizeOfBands, LSHStrategy strategy, int concurrencyLevel, ForkJoinPool pool) {
 		if (numOfMinHashes < 64)
 			throw new RuntimeException("At least 64 minhashes are required");
 		
@@ -38,107 +145,810 @@ public class LSHImpl implements LSH {
 		this.numOfMinHashes = numOfMinHashes;
 		this.sizeOfBands = sizeOfBands;
 		this.strategy = strategy;
+		this.pool = pool;
+		if (strategy.getFingerprintBits() != 0 && strategy.getNumOfMinHashes() <= 0)
+			throw new IllegalArgumentException("Strategies with fingerprints must give their number of minhashes");
 
-		this.buckets = new ConcurrentHashMap<Integer, long[]>();
-		this.signatureMap = new ConcurrentHashMap<Long, Collection<LSHable>>();
+		this.buckets = new StripedBucketTable(concurrencyLevel);
+		this.registry = new ItemRegistry(Math.max(1, strategy.getSignatureBits() / 64), strategy.getFingerprintBits());
+		this.signatureLocks = new Object[buckets.numOfStripes() * SIGNATURE_LOCKS_PER_STRIPE];
+		for (int i = 0; i < signatureLocks.length; i++) {
+			signatureLocks[i] = new Object();
+		}
 	}
 
+	/**
+	 * Each item is returned once, however many bands it shares with the input.
+	 * Duplicates are dropped by id, using scratch space kept per thread, so
+	 * apart from hashing the input a search only allocates its result. Equal
+	 * items share an id, so an item added twice is returned once.
+	 */
 	@Override
 	public Collection<LSHable> search(LSHable input, int matchThreshold) {
+		long start = metrics.start();
+		return search(start, strategy.hash(input), null, matchThreshold);
+	}
+
+	/**
+	 * Multi-probe search. Besides the input's own buckets, also searches the
+	 * numOfProbes buckets it was most likely to land in instead: those whose
+	 * keys differ by one of its least confident minhashes. This gets about the
+	 * recall of more bands out of fewer, trading some query time for the
+	 * memory every band costs per item. Needs a MultiProbeStrategy.
+	 * @param numOfProbes
+	 *            : The number of extra buckets to search. 0 is a plain search.
+	 */
+	public Collection<LSHable> search(LSHable input, int matchThreshold, int numOfProbes) {
+		if (numOfProbes <= 0)
+			return search(input, matchThreshold);
+		if (!(strategy instanceof MultiProbeStrategy))
+			throw new UnsupportedOperationException("Multi-probe search needs a MultiProbeStrategy");
+		long start = metrics.start();
+		MultiProbeStrategy probing = (MultiProbeStrategy) strategy;
+		MinHashingResult result = probing.hashWithMinHashes(input);
+		return search(start, result, probes(result, probing.getMixing(), numOfProbes), matchThreshold);
+	}
 
+	/**
+	 * @param start
+	 *            : When the search started, from metrics.start.
+	 */
+	private Collection<LSHable> search(long start, HashingResult result, int[] probes, int matchThreshold) {
+		List<LSHable> toReturn = new ArrayList<LSHable>();
+		SearchScratch filter = searchScratch.get();
+		filter.begin(registry, result, strategy.getFingerprintBits(), maxNumOfDifferences(matchThreshold), toReturn);
+		int scanned = 0;
+		try {
+			for (int index : result.getBuckets()) {
+				scanned += buckets.visit(index, filter);
+			}
+			if (probes != null) {
+				for (int index : probes) {
+					scanned += buckets.visit(index, filter);
+				}
+			}
+		} finally {
+			filter.end();
+		}
+		EvictionPolicy policy = evictionPolicy;
+		if (policy != null) {
+			for (LSHable item : toReturn) {
+				policy.hit(item);
+			}
+		}
+		metrics.recordSearch(start, scanned, toReturn.size());
+		return toReturn;
+	}
+
+	/**
+	 * Returns up to k items whose signatures are closest to the input's, closest
+	 * first. Distance is the number of differing signature bits, and items
+	 * further than the threshold allows are left out, as in search.
+	 * 
+	 * Each item in the input's buckets is considered once however many bands
+	 * it shares with the input, and its signature is only looked at if the
+	 * bits in its bucket entry don't already rule it out. Candidates are kept
+	 * in a heap bounded by k, items included, so a search holds at most k of
+	 * them however many pass the filter. Scanning stops early once k identical signatures have
+	 * been found, since nothing can beat them.
+	 */
+	public List<LSHable> searchTopK(LSHable input, int k, int matchThreshold) {
+		if (k <= 0)
+			return new ArrayList<LSHable>();
+
+		long start = metrics.start();
 		HashingResult result = strategy.hash(input);
-		int[] bucketIndices = result.getBuckets();
-		long baseSignature = result.getSignature();
+		final long baseSignature = result.getSignature();
+		final long[] baseWords = result.getSignatureWords();
+		final int maxNumOfDifferences = maxNumOfDifferences(matchThreshold);
+		final int fingerprintBits = strategy.getFingerprintBits();
+		final CandidateHeap<LSHable> best = new CandidateHeap<LSHable>(k);
+		final SearchScratch seen = searchScratch.get();
+		seen.begin(registry, result, fingerprintBits, maxNumOfDifferences, null);
 
-		Collection<LSHable> toReturn = new HashSet<LSHable>();
-		int maxNumOfDifferences = 64 - 64 *matchThreshold / 100;
-
-		for (int index : bucketIndices) {
-			long[] bucket = buckets.get(index);
-			if (bucket == null)
-				continue;
-			for (long signature : bucket) {
-				// filter by doing a bitwise-comparison of longs.
-				// find # of 1's. We have a match if the % of
-				// 1's is greater than the match threshold.
-				// also don't use 64 as your base if you have less
-				// than 64 minhash functions.
-
-				// num of differences
-				if (Long.bitCount(baseSignature ^ signature) < maxNumOfDifferences) {
-					// add to return
-					Collection<LSHable> toAdd = signatureMap.get(signature);
-					if (toAdd != null)
-						toReturn.addAll(toAdd);
+		StripedBucketTable.BucketVisitor ranker = new StripedBucketTable.BucketVisitor() {
+			// candidates are numbered in the order found, so ties go to the first.
+			private long numOfCandidates = 0;
+
+			@Override
+			public void visit(long entry) {
+				// a lower bound on the item's distance.
+				int bound = HashingUtils.differingFingerprints((baseSignature ^ entry) & ENTRY_SIGNATURE_MASK, fingerprintBits);
+				if (bound >= maxNumOfDifferences || (best.isFull() && bound > best.worstDistance()))
+					return;
+				int id = idOf(entry);
+				if (!seen.add(id))
+					return;
+				int distance = registry.distance(id, baseWords);
+				if (distance < maxNumOfDifferences && best.accepts(distance, numOfCandidates)) {
+					best.offer(distance, numOfCandidates, registry.get(id));
 				}
+				numOfCandidates++;
+			}
+		};
+		int scanned = 0;
+		try {
+			for (int index : result.getBuckets()) {
+				if (best.isFull() && best.worstDistance() == 0)
+					break;
+				scanned += buckets.visit(index, ranker);
+			}
+		} finally {
+			seen.end();
+		}
+
+		List<LSHable> toReturn = best.drainValues();
+		EvictionPolicy policy = evictionPolicy;
+		if (policy != null) {
+			for (LSHable item : toReturn) {
+				policy.hit(item);
 			}
 		}
+		metrics.recordSearch(start, scanned, toReturn.size());
 		return toReturn;
 	}
 
+	/**
+	 * The keys of the buckets one minhash away from the input's, least
+	 * confident minhash first. Each probe swaps one minhash for its runner-up
+	 * and recombines its band the way the strategy does. Equally confident
+	 * minhashes are taken one band at a time, so the probes spread over bands.
+	 */
+	static int[] probes(MinHashingResult result, HashingUtils.Mixing mixing, int numOfProbes) {
+		int[] minHashes = result.getMinHashes();
+		int[] runnerUps = result.getRunnerUps();
+		int[] margins = result.getMargins();
+		int sizeOfBands = result.getSizeOfBands();
+		int numOfBands = result.getBuckets().length;
+
+		// margin in the high half, then the position within a band, then the band.
+		long[] candidates = new long[numOfBands * sizeOfBands];
+		int numOfCandidates = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (margins[i] >= 0)
+				candidates[numOfCandidates++] = (long) margins[i] << 32 | (i % sizeOfBands) * numOfBands + i / sizeOfBands;
+		}
+		Arrays.sort(candidates, 0, numOfCandidates);
+
+		int[] probes = new int[Math.min(numOfProbes, numOfCandidates)];
+		for (int p = 0; p < probes.length; p++) {
+			int order = (int) candidates[p];
+			int band = order % numOfBands;
+			int position = band * sizeOfBands + order / numOfBands;
+			int bucket = 0;
+			for (int i = band * sizeOfBands; i < (band + 1) * sizeOfBands; i++) {
+				bucket = HashingUtils.combineIntegers(bucket, i == position ? runnerUps[i] : minHashes[i], mixing);
+			}
+			probes[p] = bucket;
+		}
+		return probes;
+	}
+
+	private int maxNumOfDifferences(int matchThreshold) {
+		return maxNumOfDifferences(strategy, matchThreshold);
+	}
+
+	/**
+	 * Signatures that differ from the input in this many bits or more are
+	 * filtered out. Every signature bit comes from one minhash, so a wide
+	 * signature only has as many meaningful bits as the strategy has
+	 * minhashes; the rest are always 0, and agreeing on them would loosen the
+	 * filter. 64-bit signatures always count all 64, as they always have. For
+	 * fingerprints, this many differing fingerprints or more, out of those
+	 * the strategy's minhashes fill, put the estimated Jaccard similarity
+	 * under the threshold.
+	 */
+	static int maxNumOfDifferences(LSHStrategy strategy, int matchThreshold) {
+		int signatureBits = strategy.getSignatureBits();
+		int fingerprintBits = strategy.getFingerprintBits();
+		if (fingerprintBits != 0) {
+			int numOfFingerprints = Math.min(signatureBits / fingerprintBits, strategy.getNumOfMinHashes());
+			return HashingUtils.maxDifferingFingerprints(numOfFingerprints, fingerprintBits, matchThreshold) + 1;
+		}
+		int numOfMinHashes = strategy.getNumOfMinHashes();
+		// strategies that don't say are taken to fill their signatures.
+		int bits = signatureBits == 64 || numOfMinHashes <= 0 ? signatureBits : Math.min(signatureBits, numOfMinHashes);
+		return bits - bits * matchThreshold / 100;
+	}
+
 	@Override
 	public void add(LSHable input) {
 
+		long start = metrics.start();
 		HashingResult result = strategy.hash(input);
+		WriteAheadLog log = writeAheadLog;
+		if (log == null) {
+			insert(input, result);
+		} else {
+			checkpointLock.readLock().lock();
+			try {
+				log.append(WriteAheadLog.ADD, input, result);
+				insert(input, result);
+			} finally {
+				checkpointLock.readLock().unlock();
+			}
+		}
+		evictIfNeeded(MAX_EVICTIONS_PER_ADD);
+		metrics.recordAdd(start);
+	}
+
+	private void insert(LSHable input, HashingResult result) {
 		int[] bucketIndices = result.getBuckets();
 		long baseSignature = result.getSignature();
 
-		for (int index : bucketIndices) {
-			long[] bucket = buckets.get(index);
-			if (bucket == null){
-				bucket = new long[1];
-				buckets.put(index, bucket);
-			}				
-
-			boolean foundSignature = false;
-			for (int i = 0; i < bucket.length; i++) {
-				if (bucket[i] == baseSignature) {
-					foundSignature = true;
-					break;
-				}
+		synchronized (lockFor(baseSignature)) {
+			int id = find(input, result);
+			// register the item before its id becomes reachable from a bucket.
+			if (id == -1)
+				id = register(input, result.getSignatureWords());
+			long entry = entry(baseSignature, id);
+			for (int index : bucketIndices) {
+				buckets.add(index, entry);
 			}
-			if (foundSignature == false) {
-				// add
-				int pos = findNextEmptySpot(bucket);
-				if (pos == -1) {
-					bucket = Arrays.copyOf(bucket, bucket.length + 1);
-					buckets.put(index, bucket);
-					pos = bucket.length - 1;
-				}
-				bucket[pos] = baseSignature;
+		}
+	}
+
+	/**
+	 * Removes an item. The item is hashed again to find its buckets, so its
+	 * input must not have changed since it was added. An item that an addAll
+	 * is still adding isn't removed.
+	 */
+	@Override
+	public boolean remove(LSHable input) {
+		HashingResult result = strategy.hash(input);
+		WriteAheadLog log = writeAheadLog;
+		if (log == null)
+			return delete(input, result);
+		checkpointLock.readLock().lock();
+		try {
+			log.append(WriteAheadLog.REMOVE, input, result);
+			return delete(input, result);
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+	}
+
+	private boolean delete(LSHable input, HashingResult result) {
+		long baseSignature = result.getSignature();
+		synchronized (lockFor(baseSignature)) {
+			int id = find(input, result);
+			if (id == -1)
+				return false;
+			if (pendingIds.containsKey(id)) {
+				// it stays, so an eviction policy that picked it has to keep tracking it.
+				EvictionPolicy policy = evictionPolicy;
+				if (policy != null)
+					policy.added(input);
+				return false;
 			}
+			long entry = entry(baseSignature, id);
+			for (int index : result.getBuckets()) {
+				buckets.remove(index, entry);
+			}
+			// searches only reach ids through buckets, so nothing can see it now.
+			registry.release(id);
+		}
+		numOfItems.decrementAndGet();
+		EvictionPolicy policy = evictionPolicy;
+		if (policy != null)
+			policy.removed(input);
+		return true;
+	}
 
+	/**
+	 * Looks for an item in its buckets. Usually only the first bucket needs to
+	 * be read, but an item restored from a snapshot taken during its add may
+	 * be missing from some of them.
+	 * @return its id, or -1.
+	 */
+	private int find(final LSHable input, HashingResult result) {
+		final long[] baseWords = result.getSignatureWords();
+		final int[] found = { -1 };
+		StripedBucketTable.BucketVisitor matcher = entry -> {
+			if (found[0] != -1 || ((entry ^ baseWords[0]) & ENTRY_SIGNATURE_MASK) != 0)
+				return;
+			int id = idOf(entry);
+			if (registry.distance(id, baseWords) == 0 && input.equals(registry.get(id)))
+				found[0] = id;
+		};
+		for (int index : result.getBuckets()) {
+			buckets.visit(index, matcher);
+			if (found[0] != -1)
+				break;
 		}
-		Collection<LSHable> vals = signatureMap.get(baseSignature);
-		if(vals == null){
-			vals = new ArrayList<LSHable>();
-			signatureMap.put(baseSignature, vals);
+		return found[0];
+	}
+
+	/**
+	 * Sets the log that adds and removes are recorded in, or null to stop
+	 * logging. Replay the log into the index before setting it.
+	 * @param log
+	 */
+	public void setWriteAheadLog(WriteAheadLog log) {
+		this.writeAheadLog = log;
+	}
+
+	/**
+	 * Writes a snapshot of the index and deletes the log segments it makes
+	 * redundant. The snapshot is written to a temporary file first and then
+	 * moved over the old one, so a crash leaves either the old or the new
+	 * snapshot. Adds and removes can continue while it is written.
+	 */
+	public void checkpoint(File snapshot, ItemSerializer serializer) throws IOException {
+		WriteAheadLog log = writeAheadLog;
+		long segment = -1;
+		if (log != null) {
+			checkpointLock.writeLock().lock();
+			try {
+				segment = log.rotate();
+			} finally {
+				checkpointLock.writeLock().unlock();
+			}
 		}
-		vals.add(input);
+		File temp = new File(snapshot.getPath() + ".tmp");
+		Snapshot.write(this, serializer, temp);
+		Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (log != null)
+			log.deleteSegmentsBefore(segment);
+	}
 
+	/**
+	 * Replays a logged add. If the item is already indexed under that
+	 * signature, only makes sure it's in all of its buckets, as add does.
+	 */
+	void replayAdd(LSHable input, HashingResult result) {
+		insert(input, result);
+	}
+
+	void replayRemove(LSHable input, HashingResult result) {
+		delete(input, result);
 	}
 
 	/**
-	 * Returns -1 if there is no empty position available.
-	 * 
-	 * @param array
-	 * @return
+	 * Sets the policy used to keep the index within its budget, or null to
+	 * disable eviction. Only items added after the policy is set are tracked
+	 * by it.
+	 * @param policy
+	 */
+	public void setEvictionPolicy(EvictionPolicy policy) {
+		this.evictionPolicy = policy;
+	}
+
+	/**
+	 * Hashes the inputs in parallel on the pool, then inserts them grouped by
+	 * bucket stripe, so each stripe's lock is taken once per batch rather than
+	 * once per band of every item. Only each new item's first bucket is filled
+	 * in on its own, under its signature lock, so equal items are found.
+	 */
+	@Override
+	public void addAll(Collection<? extends LSHable> inputs) {
+		long start = metrics.start();
+		final LSHable[] items = inputs.toArray(new LSHable[inputs.size()]);
+		final HashingResult[] results = new HashingResult[items.length];
+		ParallelRange.forEach(pool, 0, items.length, i -> results[i] = strategy.hash(items[i]));
+		addAll(start, items, results);
+	}
+
+	/**
+	 * Adds items that have already been hashed, for callers that hash on
+	 * their own threads, such as an ingestion pipeline.
+	 * @param results
+	 *            : results[i] must be getStrategy().hash(items[i]).
 	 */
-	private int findNextEmptySpot(long[] array) {
-		for (int i = 0; i < array.length; i++) {
-			//overrwrites any signature with value of 0. This is probably ok.
-			if (array[i] == 0) {
-				return i;
+	public void addAll(LSHable[] items, HashingResult[] results) {
+		addAll(metrics.start(), items, results);
+	}
+
+	private void addAll(long start, LSHable[] items, HashingResult[] results) {
+		if (items.length != results.length)
+			throw new IllegalArgumentException(items.length + " items but " + results.length + " hashing results");
+		WriteAheadLog log = writeAheadLog;
+		if (log == null) {
+			insertAll(items, results);
+		} else {
+			checkpointLock.readLock().lock();
+			try {
+				log.appendAll(WriteAheadLog.ADD, items, results);
+				insertAll(items, results);
+			} finally {
+				checkpointLock.readLock().unlock();
 			}
 		}
-		return -1;
+		evictIfNeeded(items.length * MAX_EVICTIONS_PER_ADD);
+		metrics.recordBatch(start, items.length);
 	}
-	
+
+	private void insertAll(final LSHable[] items, final HashingResult[] results) {
+		final int[] ids = new int[items.length];
+		Arrays.fill(ids, -1);
+		try {
+			ParallelRange.forEach(pool, 0, items.length, i -> ids[i] = findOrRegister(items[i], results[i]));
+			insertBuckets(ids, results);
+		} finally {
+			for (int id : ids) {
+				if (id != -1)
+					pendingIds.computeIfPresent(id, (key, count) -> count == 1 ? null : count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Finds an indexed item equal to the input, or registers the input and
+	 * puts it in its first bucket, so that adds of equal items find it before
+	 * the rest of its buckets are filled in. Either way the id is pending
+	 * until the caller has filled them in.
+	 * @return the item's id.
+	 */
+	private int findOrRegister(LSHable input, HashingResult result) {
+		long baseSignature = result.getSignature();
+		synchronized (lockFor(baseSignature)) {
+			int id = find(input, result);
+			if (id == -1) {
+				id = register(input, result.getSignatureWords());
+				int[] bucketIndices = result.getBuckets();
+				if (bucketIndices.length > 0)
+					buckets.add(bucketIndices[0], entry(baseSignature, id));
+			}
+			pendingIds.merge(id, 1, Integer::sum);
+			return id;
+		}
+	}
+
+	/**
+	 * Adds every item to its buckets, grouped by stripe.
+	 */
+	private void insertBuckets(final int[] ids, final HashingResult[] results) {
+		// counting sort of every (bucket, entry) pair by stripe.
+		int numOfStripes = buckets.numOfStripes();
+		final int[] offsets = new int[numOfStripes + 1];
+		for (HashingResult result : results) {
+			for (int index : result.getBuckets()) {
+				offsets[buckets.stripeOf(index) + 1]++;
+			}
+		}
+		for (int i = 0; i < numOfStripes; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		final int[] keys = new int[offsets[numOfStripes]];
+		final long[] entries = new long[keys.length];
+		int[] positions = Arrays.copyOf(offsets, numOfStripes);
+		for (int i = 0; i < results.length; i++) {
+			long entry = entry(results[i].getSignature(), ids[i]);
+			for (int index : results[i].getBuckets()) {
+				int position = positions[buckets.stripeOf(index)]++;
+				keys[position] = index;
+				entries[position] = entry;
+			}
+		}
+
+		ParallelRange.forEach(pool, 0, numOfStripes, stripe -> 
+			buckets.addAll(stripe, keys, entries, offsets[stripe], offsets[stripe + 1]));
+	}
+
+	@Override
+	public List<Collection<LSHable>> searchAll(List<? extends LSHable> inputs, final int threshold) {
+		return searchAll(inputs, threshold, 0);
+	}
+
+	/**
+	 * Multi-probe searches in parallel on the pool.
+	 * @see #search(LSHable, int, int)
+	 */
+	public List<Collection<LSHable>> searchAll(List<? extends LSHable> inputs, final int threshold, final int numOfProbes) {
+		final LSHable[] items = inputs.toArray(new LSHable[inputs.size()]);
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final Collection<LSHable>[] results = new Collection[items.length];
+		ParallelRange.forEach(pool, 0, items.length, i -> results[i] = search(items[i], threshold, numOfProbes));
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Gives an item an id. It still has to be added to its buckets.
+	 * @return the id.
+	 */
+	private int register(LSHable input, long[] signatureWords) {
+		int id = registry.register(input, signatureWords);
+		numOfItems.incrementAndGet();
+		EvictionPolicy policy = evictionPolicy;
+		if (policy != null)
+			policy.added(input);
+		return id;
+	}
+
+	private Object lockFor(long signature) {
+		return signatureLocks[IntHash.fmix32((int) (signature ^ (signature >>> 32))) & (signatureLocks.length - 1)];
+	}
+
+	/**
+	 * Packs an item's id with the high half of its signature, for storing in
+	 * its buckets.
+	 */
+	static long entry(long signature, int id) {
+		return (signature & ENTRY_SIGNATURE_MASK) | (id & 0xFFFFFFFFL);
+	}
+
+	static int idOf(long entry) {
+		return (int) entry;
+	}
+
+	/**
+	 * Evicts up to maxEvictions items while the policy says the index is over
+	 * budget.
+	 */
+	private void evictIfNeeded(int maxEvictions) {
+		EvictionPolicy policy = evictionPolicy;
+		if (policy == null)
+			return;
+		for (int i = 0; i < maxEvictions && policy.overBudget(numOfItems.get(), memoryUsage()); i++) {
+			LSHable victim = policy.selectVictim();
+			if (victim == null)
+				return;
+			remove(victim);
+		}
+	}
+
+	/**
+	 * The strategy items are hashed with.
+	 */
+	public LSHStrategy getStrategy() {
+		return strategy;
+	}
+
+	/*
+	 * Access for Snapshot.
+	 */
+
+	int getNumOfMinHashes() {
+		return numOfMinHashes;
+	}
+
+	int getSizeOfBands() {
+		return sizeOfBands;
+	}
+
+	StripedBucketTable getBuckets() {
+		return buckets;
+	}
+
+	ItemRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Puts an item back under a signature without hashing it. Its buckets have
+	 * to be restored separately, with restoreBucket.
+	 * @return its id.
+	 */
+	int restoreItem(LSHable input, long[] signatureWords) {
+		return register(input, signatureWords);
+	}
+
+	void restoreBucket(int index, int id) {
+		buckets.add(index, entry(registry.signature(id), id));
+	}
+
+	/**
+	 * @return the number of items in the index.
+	 */
+	public long size() {
+		return numOfItems.get();
+	}
+
+	/**
+	 * A rough estimate of the heap used by the index, in bytes, not counting
+	 * the items themselves. Space freed by removes is kept for reuse rather
+	 * than released, and isn't counted, except for the bucket tables' slot
+	 * arrays, which only ever grow.
+	 * @return
+	 */
+	public long memoryUsage() {
+		return buckets.memoryUsage() + registry.memoryUsage();
+	}
+
 	/**
 	 * For testing/debugging
 	 * @return
 	 */
 	public long getTotalBuckets(){
-		return buckets.keySet().size();
+		return buckets.numOfKeys();
+	}
+
+	/**
+	 * Switches the recording of metrics on or off. It is on by default, and
+	 * costs a few tens of nanoseconds per add and search.
+	 * @param enabled
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		metrics.setEnabled(enabled);
+	}
+
+	public boolean isMetricsEnabled() {
+		return metrics.isEnabled();
+	}
+
+	/**
+	 * Clears the recorded counts and latencies.
+	 */
+	public void resetMetrics() {
+		metrics.reset();
+	}
+
+	/**
+	 * A snapshot of the metrics, including statistics on the buckets.
+	 */
+	public MetricsSnapshot getMetrics() {
+		return getMetrics(true);
+	}
+
+	/**
+	 * @param scanBuckets
+	 *            : Whether to visit every bucket for the bucket size
+	 *            histogram, largest buckets and distinct signatures. That
+	 *            takes time proportional to the size of the index; the rest
+	 *            of the snapshot doesn't.
+	 */
+	public MetricsSnapshot getMetrics(boolean scanBuckets) {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.enabled = metrics.isEnabled();
+		snapshot.size = size();
+		snapshot.memoryUsage = memoryUsage();
+		snapshot.adds = metrics.adds.sum();
+		snapshot.searches = metrics.searches.sum();
+		snapshot.candidatesScanned = metrics.candidatesScanned.sum();
+		snapshot.candidatesReturned = metrics.candidatesReturned.sum();
+		snapshot.addLatency = metrics.addLatency.snapshot();
+		snapshot.batchLatency = metrics.batchLatency.snapshot();
+		snapshot.searchLatency = metrics.searchLatency.snapshot();
+		snapshot.scannedPerSearch = metrics.scannedPerSearch.snapshot();
+		snapshot.returnedPerSearch = metrics.returnedPerSearch.snapshot();
+		if (scanBuckets)
+			scanBuckets(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Fills in a snapshot's bucket statistics in one pass over the buckets.
+	 * Signatures are counted for the items found in them, so items still
+	 * being added or removed may be left out.
+	 */
+	private void scanBuckets(MetricsSnapshot snapshot) {
+		registry.beginScan();
+		try {
+			final int idLimit = registry.idLimit();
+			final boolean[] indexed = new boolean[idLimit];
+			final Histogram sizes = new Histogram();
+			// ranked by negated size, so the heap keeps the largest.
+			final CandidateHeap<Void> largest = new CandidateHeap<Void>(NUM_OF_LARGEST_BUCKETS);
+			buckets.forEachBucket((key, table, slot) -> {
+				int size = table.size(slot);
+				sizes.record(size);
+				long candidate = (long) size << 32 | (key & 0xFFFFFFFFL);
+				if (largest.accepts(-size, candidate))
+					largest.offer(-size, candidate);
+				for (int i = 0; i < size; i++) {
+					int id = idOf(table.get(slot, i));
+					if (id < idLimit)
+						indexed[id] = true;
+				}
+			});
+
+			int signatureWords = registry.signatureWords();
+			long[] words = new long[signatureWords];
+			long[] signatures = new long[idLimit];
+			int numOfSignatures = 0;
+			for (int id = 0; id < idLimit; id++) {
+				if (!indexed[id])
+					continue;
+				if (signatureWords == 1) {
+					signatures[numOfSignatures++] = registry.signature(id);
+				} else {
+					registry.signature(id, words, 0);
+					long hash = IntHash.DEFAULT_SEED_64;
+					for (long word : words) {
+						hash = IntHash.hash64(word, hash);
+					}
+					signatures[numOfSignatures++] = hash;
+				}
+			}
+			Arrays.sort(signatures, 0, numOfSignatures);
+			long distinct = 0;
+			for (int i = 0; i < numOfSignatures; i++) {
+				if (i == 0 || signatures[i] != signatures[i - 1])
+					distinct++;
+			}
+
+			long[] ranked = largest.drainSorted();
+			MetricsSnapshot.Bucket[] largestBuckets = new MetricsSnapshot.Bucket[ranked.length];
+			for (int i = 0; i < ranked.length; i++) {
+				largestBuckets[i] = new MetricsSnapshot.Bucket((int) ranked[i], (int) (ranked[i] >>> 32));
+			}
+
+			snapshot.bucketSizes = sizes.snapshot();
+			snapshot.numOfBuckets = snapshot.bucketSizes.getCount();
+			snapshot.distinctSignatures = distinct;
+			snapshot.largestBuckets = largestBuckets;
+		} finally {
+			registry.endScan();
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, as an
+	 * LSHMetricsMBean.
+	 * @param name
+	 *            : For example "lsh:type=LSHImpl,name=comments".
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new LSHMetrics(this), LSHMetricsMBean.class), objectName);
+		return objectName;
+	}
+
+	/**
+	 * A thread's reusable search state: the filter applied to each bucket
+	 * entry, and an epoch-stamped array over item ids for dropping the ones
+	 * already seen. Starting a search bumps the epoch instead of clearing the
+	 * array. Static, and cleared after each search, so it never keeps an
+	 * index reachable from the thread.
+	 */
+	private static final class SearchScratch implements StripedBucketTable.BucketVisitor {
+		private int[] stamps = new int[1024];
+		private int epoch = 0;
+
+		private ItemRegistry registry;
+		private long baseSignature;
+		private long[] baseWords;
+		private int fingerprintBits;
+		private int maxNumOfDifferences;
+		private List<LSHable> results;
+
+		void begin(ItemRegistry registry, HashingResult result, int fingerprintBits, int maxNumOfDifferences, List<LSHable> results) {
+			if (++epoch == 0) {
+				// wrapped around; stamps from 2^32 searches ago would look current.
+				Arrays.fill(stamps, 0);
+				epoch = 1;
+			}
+			this.registry = registry;
+			this.baseSignature = result.getSignature();
+			this.baseWords = result.getSignatureWords();
+			this.fingerprintBits = fingerprintBits;
+			this.maxNumOfDifferences = maxNumOfDifferences;
+			this.results = results;
+		}
+
+		void end() {
+			registry = null;
+			baseWords = null;
+			results = null;
+		}
+
+		/**
+		 * @return true the first time an id is seen in this search.
+		 */
+		boolean add(int id) {
+			if (id >= stamps.length)
+				stamps = Arrays.copyOf(stamps, Math.max(id + 1, stamps.length * 2));
+			if (stamps[id] == epoch)
+				return false;
+			stamps[id] = epoch;
+			return true;
+		}
+
+		@Override
+		public void visit(long entry) {
+			// filter by doing a bitwise-comparison of longs.
+			// find # of 1's. We have a match if the % of
+			// 1's is greater than the match threshold.
+			// The entry only holds the top 32 bits of the signature, but
+			// differences there already count towards the total.
+
+			// num of differences
+			if (HashingUtils.differingFingerprints((baseSignature ^ entry) & ENTRY_SIGNATURE_MASK, fingerprintBits) < maxNumOfDifferences) {
+				int id = idOf(entry);
+				if (add(id) && registry.distance(id, baseWords) < maxNumOfDifferences)
+					// add to return
+					results.add(registry.get(id));
+			}
+		}
 	}
 }
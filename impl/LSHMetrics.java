@@ -0,0 +1,130 @@
+package lsh.impl;
+
+/**
+ * Implements LSHMetricsMBean over an index. Each attribute takes a fresh
+ * snapshot without scanning the buckets.
+ * @author Greg
+ *
+ */
+final class LSHMetrics implements LSHMetricsMBean {
+
+	private final LSHImpl index;
+
+	LSHMetrics(LSHImpl index) {
+		this.index = index;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return index.isMetricsEnabled();
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		index.setMetricsEnabled(enabled);
+	}
+
+	@Override
+	public long getSize() {
+		return index.size();
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return index.memoryUsage();
+	}
+
+	@Override
+	public long getTotalBuckets() {
+		return index.getTotalBuckets();
+	}
+
+	@Override
+	public long getAdds() {
+		return snapshot().getAdds();
+	}
+
+	@Override
+	public long getSearches() {
+		return snapshot().getSearches();
+	}
+
+	@Override
+	public long getCandidatesScanned() {
+		return snapshot().getCandidatesScanned();
+	}
+
+	@Override
+	public long getCandidatesReturned() {
+		return snapshot().getCandidatesReturned();
+	}
+
+	@Override
+	public double getMeanCandidatesScanned() {
+		return snapshot().getScannedPerSearch().getMean();
+	}
+
+	@Override
+	public double getMeanCandidatesReturned() {
+		return snapshot().getReturnedPerSearch().getMean();
+	}
+
+	@Override
+	public long getAddLatencyMedian() {
+		return snapshot().getAddLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getAddLatency99thPercentile() {
+		return snapshot().getAddLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getAddLatencyMax() {
+		return snapshot().getAddLatency().getMax();
+	}
+
+	@Override
+	public long getBatchLatencyMedian() {
+		return snapshot().getBatchLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getBatchLatencyMax() {
+		return snapshot().getBatchLatency().getMax();
+	}
+
+	@Override
+	public long getSearchLatencyMedian() {
+		return snapshot().getSearchLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getSearchLatency99thPercentile() {
+		return snapshot().getSearchLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getSearchLatency999thPercentile() {
+		return snapshot().getSearchLatency().getPercentile(99.9);
+	}
+
+	@Override
+	public long getSearchLatencyMax() {
+		return snapshot().getSearchLatency().getMax();
+	}
+
+	@Override
+	public String report() {
+		return index.getMetrics(true).toString();
+	}
+
+	@Override
+	public void reset() {
+		index.resetMetrics();
+	}
+
+	private MetricsSnapshot snapshot() {
+		return index.getMetrics(false);
+	}
+}
@@ -0,0 +1,61 @@
+package lsh.impl;
+
+/**
+ * The JMX view of an LSHImpl's metrics; see LSHImpl.registerMBean. The
+ * attributes are cheap to read. report scans every bucket, so it takes about
+ * as long as a snapshot of the index would. Latencies are in nanoseconds.
+ * @author Greg
+ *
+ */
+public interface LSHMetricsMBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getSize();
+
+	long getMemoryUsage();
+
+	long getTotalBuckets();
+
+	long getAdds();
+
+	long getSearches();
+
+	long getCandidatesScanned();
+
+	long getCandidatesReturned();
+
+	double getMeanCandidatesScanned();
+
+	double getMeanCandidatesReturned();
+
+	long getAddLatencyMedian();
+
+	long getAddLatency99thPercentile();
+
+	long getAddLatencyMax();
+
+	long getBatchLatencyMedian();
+
+	long getBatchLatencyMax();
+
+	long getSearchLatencyMedian();
+
+	long getSearchLatency99thPercentile();
+
+	long getSearchLatency999thPercentile();
+
+	long getSearchLatencyMax();
+
+	/**
+	 * A full snapshot, bucket statistics included, as text.
+	 */
+	String report();
+
+	/**
+	 * Clears the counters and histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,173 @@
+package lsh.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import lsh.HashingResult;
+import lsh.LSH;
+import lsh.LSHable;
+import lsh.strategies.HashingUtils;
+import lsh.strategies.IntHash;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * A read-only index that answers queries directly from a memory-mapped
+ * snapshot. See Snapshot for the file layout. Load the snapshot into an
+ * LSHImpl instead if it needs to be modified.
+ * 
+ * Items are deserialized when a search returns them, so each search returns
+ * new instances. Thread-safe.
+ * @author Greg
+ *
+ */
+public class MappedLSH implements LSH {
+
+	final Snapshot.Header header;
+	private final LSHStrategy strategy;
+	private final ItemSerializer serializer;
+
+	private final IntBuffer values;
+	private final IntBuffer tableKeys;
+	private final IntBuffer tableLengths;
+	private final IntBuffer tableStarts;
+	private final LongBuffer itemSignatures;
+	private final ByteBuffer payload;
+	private final LongBuffer itemOffsets;
+	private final int mask;
+
+	MappedLSH(Snapshot.Header header, LSHStrategy strategy, FileChannel channel, ItemSerializer serializer) throws IOException {
+		this.header = header;
+		this.strategy = strategy;
+		this.serializer = serializer;
+		this.mask = header.tableCapacity - 1;
+
+		this.values = Snapshot.map(channel, header.valuesOffset, header.numOfValues * 4).asIntBuffer();
+		long capacity = header.tableCapacity;
+		this.tableKeys = Snapshot.map(channel, header.tableOffset, capacity * 4).asIntBuffer();
+		this.tableLengths = Snapshot.map(channel, header.tableOffset + capacity * 4, capacity * 4).asIntBuffer();
+		this.tableStarts = Snapshot.map(channel, header.tableOffset + capacity * 8, capacity * 4).asIntBuffer();
+		this.itemSignatures = Snapshot.map(channel, header.itemSignaturesOffset, (long) header.numOfItems * header.signatureWords * 8).asLongBuffer();
+		this.payload = Snapshot.map(channel, header.payloadOffset, header.payloadLength);
+		this.itemOffsets = Snapshot.map(channel, header.itemOffsetsOffset, header.numOfItems * 8L).asLongBuffer();
+	}
+
+	@Override
+	public Collection<LSHable> search(LSHable input, int matchThreshold) {
+		HashingResult result = strategy.hash(input);
+		long[] baseWords = result.getSignatureWords();
+		int maxNumOfDifferences = LSHImpl.maxNumOfDifferences(strategy, matchThreshold);
+
+		// collect the matching items first, so each is read only once.
+		int[] matches = new int[16];
+		int numOfMatches = 0;
+		for (int index : result.getBuckets()) {
+			int slot = IntHash.fmix32(index) & mask;
+			int length;
+			while ((length = tableLengths.get(slot)) != 0 && tableKeys.get(slot) != index) {
+				slot = (slot + 1) & mask;
+			}
+			int start = tableStarts.get(slot);
+			for (int i = 0; i < length; i++) {
+				int item = values.get(start + i);
+				if (distance(item, baseWords) < maxNumOfDifferences) {
+					if (numOfMatches == matches.length)
+						matches = Arrays.copyOf(matches, numOfMatches * 2);
+					matches[numOfMatches++] = item;
+				}
+			}
+		}
+		Arrays.sort(matches, 0, numOfMatches);
+
+		List<LSHable> toReturn = new ArrayList<LSHable>();
+		for (int i = 0; i < numOfMatches; i++) {
+			if (i == 0 || matches[i] != matches[i - 1])
+				toReturn.add(readItem(matches[i]));
+		}
+		return toReturn;
+	}
+
+	@Override
+	public List<Collection<LSHable>> searchAll(List<? extends LSHable> inputs, final int threshold) {
+		final LSHable[] items = inputs.toArray(new LSHable[inputs.size()]);
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final Collection<LSHable>[] results = new Collection[items.length];
+		ParallelRange.forEach(ForkJoinPool.commonPool(), 0, items.length, i -> results[i] = search(items[i], threshold));
+		return Arrays.asList(results);
+	}
+
+	@Override
+	public void add(LSHable input) {
+		throw new UnsupportedOperationException("Mapped snapshots are read-only; use Snapshot.load to modify one");
+	}
+
+	@Override
+	public void addAll(Collection<? extends LSHable> inputs) {
+		throw new UnsupportedOperationException("Mapped snapshots are read-only; use Snapshot.load to modify one");
+	}
+
+	@Override
+	public boolean remove(LSHable input) {
+		throw new UnsupportedOperationException("Mapped snapshots are read-only; use Snapshot.load to modify one");
+	}
+
+	public LSHStrategy getStrategy() {
+		return strategy;
+	}
+
+	public long size() {
+		return header.numOfItems;
+	}
+
+	/**
+	 * Copies every item and bucket into an empty index.
+	 */
+	void copyTo(LSHImpl index) {
+		int[] ids = new int[header.numOfItems];
+		for (int item = 0; item < header.numOfItems; item++) {
+			ids[item] = index.restoreItem(readItem(item), signatureWords(item));
+		}
+		for (int slot = 0; slot < header.tableCapacity; slot++) {
+			int key = tableKeys.get(slot);
+			int start = tableStarts.get(slot);
+			int length = tableLengths.get(slot);
+			for (int i = 0; i < length; i++) {
+				index.restoreBucket(key, ids[values.get(start + i)]);
+			}
+		}
+	}
+
+	private long[] signatureWords(int item) {
+		long[] words = new long[header.signatureWords];
+		for (int w = 0; w < words.length; w++) {
+			words[w] = itemSignatures.get(item * words.length + w);
+		}
+		return words;
+	}
+
+	private int distance(int item, long[] words) {
+		int fingerprintBits = strategy.getFingerprintBits();
+		int distance = 0;
+		for (int w = 0; w < header.signatureWords; w++) {
+			distance += HashingUtils.differingFingerprints(itemSignatures.get(item * header.signatureWords + w) ^ words[w], fingerprintBits);
+		}
+		return distance;
+	}
+
+	private LSHable readItem(int item) {
+		// duplicate, so concurrent searches don't share a position.
+		ByteBuffer bytes = payload.duplicate();
+		int offset = (int) itemOffsets.get(item);
+		int length = bytes.getInt(offset);
+		bytes.position(offset + 4);
+		bytes.limit(offset + 4 + length);
+		return serializer.deserialize(bytes.slice());
+	}
+}
@@ -0,0 +1,179 @@
+package lsh.impl;
+
+import java.util.Arrays;
+
+/**
+ * The state of an LSHImpl's metrics at one point in time, from
+ * LSHImpl.getMetrics. Latencies are in nanoseconds.
+ *
+ * The bucket statistics are only filled in when the snapshot scanned the
+ * buckets; otherwise they are left null, or -1 for counts. Each stripe is
+ * scanned consistently, but adds to other stripes may land in between.
+ * @author Greg
+ *
+ */
+public final class MetricsSnapshot {
+
+	/**
+	 * A bucket's key and the number of items in it.
+	 */
+	public static final class Bucket {
+		private final int key;
+		private final int size;
+
+		Bucket(int key, int size) {
+			this.key = key;
+			this.size = size;
+		}
+
+		public int getKey() {
+			return key;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return key + ":" + size;
+		}
+	}
+
+	/*
+	 * Filled in by LSHImpl before the snapshot is returned.
+	 */
+	boolean enabled;
+	long size;
+	long memoryUsage;
+	long adds;
+	long searches;
+	long candidatesScanned;
+	long candidatesReturned;
+	Distribution addLatency;
+	Distribution batchLatency;
+	Distribution searchLatency;
+	Distribution scannedPerSearch;
+	Distribution returnedPerSearch;
+	long numOfBuckets = -1;
+	long distinctSignatures = -1;
+	Distribution bucketSizes;
+	Bucket[] largestBuckets;
+
+	MetricsSnapshot() {}
+
+	/**
+	 * Whether metrics were being recorded. Counts stop while they're not.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	public long getAdds() {
+		return adds;
+	}
+
+	public long getSearches() {
+		return searches;
+	}
+
+	/**
+	 * The bucket entries searches looked at, counting an item once for every
+	 * bucket it was found in.
+	 */
+	public long getCandidatesScanned() {
+		return candidatesScanned;
+	}
+
+	public long getCandidatesReturned() {
+		return candidatesReturned;
+	}
+
+	/**
+	 * The latencies of single adds. Items added by addAll are in
+	 * getBatchLatency instead.
+	 */
+	public Distribution getAddLatency() {
+		return addLatency;
+	}
+
+	/**
+	 * The latencies of whole addAll batches, one per batch.
+	 */
+	public Distribution getBatchLatency() {
+		return batchLatency;
+	}
+
+	public Distribution getSearchLatency() {
+		return searchLatency;
+	}
+
+	public Distribution getScannedPerSearch() {
+		return scannedPerSearch;
+	}
+
+	public Distribution getReturnedPerSearch() {
+		return returnedPerSearch;
+	}
+
+	/**
+	 * @return the number of non-empty buckets, or -1.
+	 */
+	public long getNumOfBuckets() {
+		return numOfBuckets;
+	}
+
+	/**
+	 * The number of different signatures among the indexed items, or -1.
+	 * Signatures longer than 64 bits are compared by a 64-bit hash.
+	 */
+	public long getDistinctSignatures() {
+		return distinctSignatures;
+	}
+
+	/**
+	 * The number of items per non-empty bucket, or null.
+	 */
+	public Distribution getBucketSizes() {
+		return bucketSizes;
+	}
+
+	/**
+	 * The largest buckets, largest first, or null.
+	 */
+	public Bucket[] getLargestBuckets() {
+		return largestBuckets == null ? null : largestBuckets.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder()
+		.append("Metrics: ").append(enabled ? "enabled" : "disabled")
+		.append("\nSize: ").append(size)
+		.append("\nMemory: ").append(memoryUsage / 1000000).append("MB")
+		.append("\nAdds: ").append(adds)
+		.append("\nSearches: ").append(searches)
+		.append("\nCandidates Scanned: ").append(candidatesScanned)
+		.append("\nCandidates Returned: ").append(candidatesReturned)
+		.append("\nAdd Latency: ").append(addLatency)
+		.append("\nBatch Latency: ").append(batchLatency)
+		.append("\nSearch Latency: ").append(searchLatency)
+		.append("\nScanned Per Search: ").append(scannedPerSearch)
+		.append("\nReturned Per Search: ").append(returnedPerSearch);
+		if (bucketSizes != null) {
+			report.append("\nBuckets: ").append(numOfBuckets)
+			.append("\nDistinct Signatures: ").append(distinctSignatures)
+			.append("\nBucket Sizes: ").append(bucketSizes)
+			.append("\nLargest Buckets: ").append(Arrays.toString(largestBuckets));
+		}
+		return report.toString();
+	}
+}
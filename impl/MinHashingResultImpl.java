@@ -0,0 +1,40 @@
+package lsh.impl;
+
+import lsh.MinHashingResult;
+
+public class MinHashingResultImpl extends HashingResultImpl implements MinHashingResult{
+
+	private final int[] minHashes;
+	private final int[] runnerUps;
+	private final int[] margins;
+	private final int sizeOfBands;
+	
+	public MinHashingResultImpl(long[] signatureWords, int[] buckets, int[] minHashes, int[] runnerUps, int[] margins, int sizeOfBands){
+		super(signatureWords, buckets);
+		this.minHashes = minHashes;
+		this.runnerUps = runnerUps;
+		this.margins = margins;
+		this.sizeOfBands = sizeOfBands;
+	}
+
+	@Override
+	public int[] getMinHashes() {
+		return minHashes;
+	}
+
+	@Override
+	public int[] getRunnerUps() {
+		return runnerUps;
+	}
+
+	@Override
+	public int[] getMargins() {
+		return margins;
+	}
+
+	@Override
+	public int getSizeOfBands() {
+		return sizeOfBands;
+	}
+	
+}
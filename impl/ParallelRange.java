@@ -0,0 +1,53 @@
+package lsh.impl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a loop body for every index in a range, splitting the range in halves
+ * across a ForkJoinPool until the pieces are small enough to run directly.
+ * 
+ * @author Greg
+ *
+ */
+public class ParallelRange extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int from;
+	private final int to;
+	private final int grain;
+	private final IntConsumer body;
+
+	private ParallelRange(int from, int to, int grain, IntConsumer body) {
+		this.from = from;
+		this.to = to;
+		this.grain = grain;
+		this.body = body;
+	}
+
+	/**
+	 * Calls body for each index in [from, to) on the pool and waits for all of
+	 * them to finish.
+	 */
+	public static void forEach(ForkJoinPool pool, int from, int to, IntConsumer body) {
+		if (to <= from)
+			return;
+		// aim for a few pieces per worker so stragglers can be stolen.
+		int grain = Math.max(1, (to - from) / (pool.getParallelism() * 8));
+		pool.invoke(new ParallelRange(from, to, grain, body));
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= grain) {
+			for (int i = from; i < to; i++) {
+				body.accept(i);
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		invokeAll(new ParallelRange(from, mid, grain, body), new ParallelRange(mid, to, grain, body));
+	}
+}
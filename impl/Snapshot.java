@@ -0,0 +1,410 @@
+package lsh.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import lsh.LSHable;
+import lsh.strategies.HashingUtils;
+import lsh.strategies.IntHash;
+import lsh.strategies.LSHStrategy;
+import lsh.strategies.RandomHashStrategy;
+
+/**
+ * Writes an LSHImpl to a binary snapshot file, and opens snapshots either as a
+ * read-only MappedLSH that answers queries straight from the mapped file, or
+ * by loading them back into an LSHImpl without re-running the strategy.
+ * 
+ * Layout, all big-endian, every section 8-byte aligned:
+ * <pre>
+ * header      magic, version, LSHImpl config, offset/size of each section
+ * strategy    type, band size, mixing, signature bits, fingerprint bits,
+ *             minhash seeds
+ * values      int[]   the items in every bucket, by number, bucket after
+ *             bucket
+ * table       int[] keys, int[] lengths, int[] starts; an open-addressed
+ *             (linear probing) table from bucket key to its run in values
+ * signatures  long[]  every word of each item's signature, item after item
+ * payload     the items, serialized, in number order
+ * itemOffsets long[]  where each item starts in payload
+ * </pre>
+ * Items are numbered 0 to numOfItems - 1 in the snapshot, whatever their ids
+ * were in the index.
+ * Each section is mapped on its own, so sections are limited to 2GB.
+ * 
+ * Only RandomHashStrategy can be written, since the strategy's parameters are
+ * part of the snapshot. A snapshot taken while other threads add to the index
+ * may contain some of their items and not others.
+ * @author Greg
+ *
+ */
+public final class Snapshot {
+
+	static final int MAGIC = 0x4C534853; // "LSHS"
+	static final int VERSION = 4;
+	static final int HEADER_SIZE = 128;
+
+	static final int STRATEGY_RANDOM_HASH = 1;
+
+	private static final float TABLE_LOAD_FACTOR = 0.5f;
+
+	// all methods static; private constructor.
+	private Snapshot() {}
+
+	public static void write(LSHImpl index, ItemSerializer serializer, File file) throws IOException {
+		if (!(index.getStrategy() instanceof RandomHashStrategy))
+			throw new IllegalArgumentException("Only indexes using RandomHashStrategy can be snapshotted");
+		RandomHashStrategy strategy = (RandomHashStrategy) index.getStrategy();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			final SectionWriter out = new SectionWriter(channel, HEADER_SIZE);
+			Header header = new Header();
+			header.numOfMinHashes = index.getNumOfMinHashes();
+			header.sizeOfBands = index.getSizeOfBands();
+
+			header.strategyOffset = out.position();
+			int[] seeds = strategy.getRandomIntegers();
+			out.writeInt(STRATEGY_RANDOM_HASH);
+			out.writeInt(strategy.getSizeOfBands());
+			out.writeInt(strategy.getMixing().ordinal());
+			out.writeInt(strategy.getSignatureBits());
+			out.writeInt(strategy.getFingerprintBits());
+			out.writeInt(seeds.length);
+			for (int seed : seeds) {
+				out.writeInt(seed);
+			}
+
+			ItemRegistry registry = index.getRegistry();
+			final int signatureWords = registry.signatureWords();
+			// ids released from here on aren't reused, so each id keeps meaning the same item.
+			registry.beginScan();
+			try {
+				/*
+				 * Number the items that are in at least one bucket. Items whose add
+				 * hasn't reached a bucket yet are left out; the log still has them.
+				 */
+				final int idLimit = registry.idLimit();
+				final int[] numbers = new int[idLimit];
+				Arrays.fill(numbers, -1);
+				index.getBuckets().forEachBucket((key, table, slot) -> {
+					for (int i = 0; i < table.size(slot); i++) {
+						int id = LSHImpl.idOf(table.get(slot, i));
+						if (id < idLimit)
+							numbers[id] = 0;
+					}
+				});
+				LSHable[] items = new LSHable[idLimit];
+				long[] itemSignatures = new long[idLimit * signatureWords];
+				int numOfItems = 0;
+				for (int id = 0; id < idLimit; id++) {
+					LSHable item = numbers[id] == 0 ? registry.get(id) : null;
+					if (item == null) {
+						numbers[id] = -1;
+						continue;
+					}
+					registry.signature(id, itemSignatures, numOfItems * signatureWords);
+					items[numOfItems] = item;
+					numbers[id] = numOfItems++;
+				}
+
+				// values, collecting each bucket's key and run as we go.
+				out.align();
+				header.valuesOffset = out.position();
+				final IntList keys = new IntList();
+				final IntList lengths = new IntList();
+				final IntList starts = new IntList();
+				final long[] numOfValues = new long[1];
+				index.getBuckets().forEachBucket((key, table, slot) -> {
+					int length = 0;
+					for (int i = 0; i < table.size(slot); i++) {
+						int id = LSHImpl.idOf(table.get(slot, i));
+						if (id < idLimit && numbers[id] != -1) {
+							out.writeInt(numbers[id]);
+							length++;
+						}
+					}
+					if (length == 0)
+						return;
+					keys.add(key);
+					lengths.add(length);
+					starts.add((int) numOfValues[0]);
+					numOfValues[0] += length;
+				});
+				out.rethrow();
+				header.numOfValues = numOfValues[0];
+
+				// the bucket table
+				int capacity = tableCapacity(keys.size);
+				int[] tableKeys = new int[capacity];
+				int[] tableLengths = new int[capacity];
+				int[] tableStarts = new int[capacity];
+				for (int i = 0; i < keys.size; i++) {
+					int slot = IntHash.fmix32(keys.values[i]) & (capacity - 1);
+					while (tableLengths[slot] != 0) {
+						slot = (slot + 1) & (capacity - 1);
+					}
+					tableKeys[slot] = keys.values[i];
+					tableLengths[slot] = lengths.values[i];
+					tableStarts[slot] = starts.values[i];
+				}
+				out.align();
+				header.tableOffset = out.position();
+				header.tableCapacity = capacity;
+				header.numOfBuckets = keys.size;
+				for (int[] array : new int[][] { tableKeys, tableLengths, tableStarts }) {
+					for (int value : array) {
+						out.writeInt(value);
+					}
+				}
+				tableKeys = tableLengths = tableStarts = null;
+
+				out.align();
+				header.itemSignaturesOffset = out.position();
+				header.signatureWords = signatureWords;
+				for (int i = 0; i < numOfItems * signatureWords; i++) {
+					out.writeLong(itemSignatures[i]);
+				}
+
+				header.payloadOffset = out.position();
+				long[] itemOffsets = new long[numOfItems];
+				for (int i = 0; i < numOfItems; i++) {
+					itemOffsets[i] = out.position() - header.payloadOffset;
+					byte[] bytes = serializer.serialize(items[i]);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				header.payloadLength = out.position() - header.payloadOffset;
+
+				out.align();
+				header.itemOffsetsOffset = out.position();
+				header.numOfItems = numOfItems;
+				for (long offset : itemOffsets) {
+					out.writeLong(offset);
+				}
+			} finally {
+				registry.endScan();
+			}
+			out.flush();
+
+			channel.position(0);
+			channel.write(header.toBytes());
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Maps a snapshot read-only. Opening takes about the same time whatever
+	 * the size of the snapshot; pages are read in as queries touch them.
+	 */
+	public static MappedLSH open(File file, ItemSerializer serializer) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			Header header = Header.read(channel);
+			return new MappedLSH(header, readStrategy(channel, header), channel, serializer);
+		}
+	}
+
+	/**
+	 * Reads a snapshot into a new, modifiable LSHImpl. Items are deserialized
+	 * and put back into their buckets directly, without hashing them again.
+	 */
+	public static LSHImpl load(File file, ItemSerializer serializer) throws IOException {
+		MappedLSH mapped = open(file, serializer);
+		LSHImpl index = new LSHImpl(mapped.header.numOfMinHashes, mapped.header.sizeOfBands, mapped.getStrategy());
+		mapped.copyTo(index);
+		return index;
+	}
+
+	private static LSHStrategy readStrategy(FileChannel channel, Header header) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, header.strategyOffset,
+				header.valuesOffset - header.strategyOffset);
+		int type = buffer.getInt();
+		if (type != STRATEGY_RANDOM_HASH)
+			throw new IOException("Unknown strategy type " + type);
+		int sizeOfBands = buffer.getInt();
+		HashingUtils.Mixing mixing = HashingUtils.Mixing.values()[buffer.getInt()];
+		int signatureBits = buffer.getInt();
+		int fingerprintBits = buffer.getInt();
+		int[] seeds = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(seeds);
+		return new RandomHashStrategy(seeds, sizeOfBands, mixing, signatureBits, fingerprintBits);
+	}
+
+	private static int tableCapacity(int numOfKeys) {
+		int capacity = 16;
+		while (capacity * TABLE_LOAD_FACTOR < numOfKeys) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	static MappedByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Snapshot section larger than 2GB");
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	/**
+	 * Section offsets and sizes, stored at the start of the file.
+	 */
+	static class Header {
+		int numOfMinHashes;
+		int sizeOfBands;
+		long strategyOffset;
+		long valuesOffset;
+		long numOfValues;
+		long tableOffset;
+		int tableCapacity;
+		int numOfBuckets;
+		long itemSignaturesOffset;
+		int signatureWords;
+		long payloadOffset;
+		long payloadLength;
+		long itemOffsetsOffset;
+		int numOfItems;
+
+		ByteBuffer toBytes() {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putInt(numOfMinHashes).putInt(sizeOfBands);
+			buffer.putLong(strategyOffset);
+			buffer.putLong(valuesOffset).putLong(numOfValues);
+			buffer.putLong(tableOffset).putInt(tableCapacity).putInt(numOfBuckets);
+			buffer.putLong(itemSignaturesOffset).putInt(signatureWords);
+			buffer.putLong(payloadOffset).putLong(payloadLength);
+			buffer.putLong(itemOffsetsOffset).putInt(numOfItems);
+			buffer.rewind();
+			return buffer;
+		}
+
+		static Header read(FileChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0)
+					throw new IOException("Snapshot is truncated");
+			}
+			buffer.flip();
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a snapshot file");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version);
+			Header header = new Header();
+			header.numOfMinHashes = buffer.getInt();
+			header.sizeOfBands = buffer.getInt();
+			header.strategyOffset = buffer.getLong();
+			header.valuesOffset = buffer.getLong();
+			header.numOfValues = buffer.getLong();
+			header.tableOffset = buffer.getLong();
+			header.tableCapacity = buffer.getInt();
+			header.numOfBuckets = buffer.getInt();
+			header.itemSignaturesOffset = buffer.getLong();
+			header.signatureWords = buffer.getInt();
+			header.payloadOffset = buffer.getLong();
+			header.payloadLength = buffer.getLong();
+			header.itemOffsetsOffset = buffer.getLong();
+			header.numOfItems = buffer.getInt();
+			return header;
+		}
+	}
+
+	/**
+	 * A buffered writer that knows its position in the file. The bucket
+	 * callback can't throw IOException, so the first failure is kept and
+	 * rethrown afterwards.
+	 */
+	private static class SectionWriter {
+		private final DataOutputStream out;
+		private long position;
+		private IOException failure;
+
+		SectionWriter(final FileChannel channel, long start) throws IOException {
+			channel.position(start);
+			this.position = start;
+			this.out = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+			}, 1 << 16));
+		}
+
+		long position() {
+			return position;
+		}
+
+		void writeInt(int value) {
+			try {
+				out.writeInt(value);
+				position += 4;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		void writeLong(long value) {
+			try {
+				out.writeLong(value);
+				position += 8;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		void write(byte[] bytes) throws IOException {
+			out.write(bytes);
+			position += bytes.length;
+		}
+
+		/**
+		 * Pads to a multiple of 8 bytes.
+		 */
+		void align() throws IOException {
+			while ((position & 7) != 0) {
+				out.write(0);
+				position++;
+			}
+		}
+
+		void rethrow() throws IOException {
+			if (failure != null)
+				throw failure;
+		}
+
+		void flush() throws IOException {
+			rethrow();
+			out.flush();
+		}
+	}
+
+	/**
+	 * A growable int array.
+	 */
+	private static class IntList {
+		int[] values = new int[1024];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+}
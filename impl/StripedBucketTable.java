@@ -0,0 +1,205 @@
+package lsh.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import lsh.strategies.IntHash;
+
+/**
+ * A thread-safe bucket table made of independently locked BucketTable stripes.
+ *
+ * A key always maps to the same stripe, picked from the high bits of its hash
+ * (BucketTable probes with the low bits). Writers to different stripes never
+ * contend, and readers only block while a writer holds their own stripe.
+ * Each add and each visit is atomic for its bucket, but nothing is atomic
+ * across buckets.
+ *
+ * @author Greg
+ *
+ */
+class StripedBucketTable {
+
+	/**
+	 * Receives the values of a bucket. Called while the stripe's read lock is
+	 * held, so it must not call back into the table.
+	 */
+	interface BucketVisitor {
+		void visit(long value);
+	}
+
+	/**
+	 * Receives a whole bucket. Called while the stripe's read lock is held.
+	 */
+	interface BucketConsumer {
+		void accept(int key, BucketTable table, int slot);
+	}
+
+	private final BucketTable[] stripes;
+	private final ReentrantReadWriteLock[] locks;
+	private final int stripeShift;
+	// kept up to date by writers, so reading it doesn't need any locks.
+	private final AtomicLong memoryUsage = new AtomicLong();
+
+	/**
+	 * @param concurrencyLevel
+	 *            : The expected number of concurrent writers. Rounded up to a
+	 *            power of two.
+	 */
+	StripedBucketTable(int concurrencyLevel) {
+		int numOfStripes = 1;
+		while (numOfStripes < concurrencyLevel)
+			numOfStripes <<= 1;
+		this.stripes = new BucketTable[numOfStripes];
+		this.locks = new ReentrantReadWriteLock[numOfStripes];
+		for (int i = 0; i < numOfStripes; i++) {
+			stripes[i] = new BucketTable();
+			locks[i] = new ReentrantReadWriteLock();
+			memoryUsage.addAndGet(stripes[i].memoryUsage());
+		}
+		this.stripeShift = 32 - Integer.numberOfTrailingZeros(numOfStripes);
+	}
+
+	/**
+	 * The stripe a key belongs to. Callers can use this to group keys by stripe.
+	 * @param key
+	 * @return
+	 */
+	int stripeOf(int key) {
+		// shifting an int by 32 is a no-op in Java, so a single stripe needs a special case.
+		return stripes.length == 1 ? 0 : IntHash.fmix32(key) >>> stripeShift;
+	}
+
+	int numOfStripes() {
+		return stripes.length;
+	}
+
+	/**
+	 * Adds a value to a bucket unless the bucket already contains it.
+	 * @return true if the value was added.
+	 */
+	boolean add(int key, long value) {
+		int stripe = stripeOf(key);
+		ReentrantReadWriteLock.WriteLock lock = locks[stripe].writeLock();
+		lock.lock();
+		try {
+			BucketTable table = stripes[stripe];
+			long before = table.memoryUsage();
+			boolean added = table.add(key, value);
+			memoryUsage.addAndGet(table.memoryUsage() - before);
+			return added;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a value from a bucket.
+	 * @return true if the value was present.
+	 */
+	boolean remove(int key, long value) {
+		int stripe = stripeOf(key);
+		ReentrantReadWriteLock.WriteLock lock = locks[stripe].writeLock();
+		lock.lock();
+		try {
+			BucketTable table = stripes[stripe];
+			long before = table.memoryUsage();
+			boolean removed = table.remove(key, value);
+			memoryUsage.addAndGet(table.memoryUsage() - before);
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a batch of key/value pairs that all belong to one stripe, taking the
+	 * stripe's lock once for the whole batch.
+	 * @param stripe
+	 * @param keys
+	 * @param values
+	 * @param from
+	 *            : inclusive
+	 * @param to
+	 *            : exclusive
+	 */
+	void addAll(int stripe, int[] keys, long[] values, int from, int to) {
+		ReentrantReadWriteLock.WriteLock lock = locks[stripe].writeLock();
+		lock.lock();
+		try {
+			BucketTable table = stripes[stripe];
+			long before = table.memoryUsage();
+			for (int i = from; i < to; i++) {
+				table.add(keys[i], values[i]);
+			}
+			memoryUsage.addAndGet(table.memoryUsage() - before);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Passes every value in a bucket to the visitor.
+	 * @return the number of values visited.
+	 */
+	int visit(int key, BucketVisitor visitor) {
+		int stripe = stripeOf(key);
+		ReentrantReadWriteLock.ReadLock lock = locks[stripe].readLock();
+		lock.lock();
+		try {
+			BucketTable table = stripes[stripe];
+			int slot = table.find(key);
+			if (slot == -1)
+				return 0;
+			int size = table.size(slot);
+			for (int i = 0; i < size; i++) {
+				visitor.visit(table.get(slot, i));
+			}
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Passes every non-empty bucket to the consumer, one stripe at a time. Each
+	 * stripe is read consistently, but writes to other stripes may happen
+	 * in between.
+	 */
+	void forEachBucket(BucketConsumer consumer) {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				BucketTable table = stripes[i];
+				for (int slot = 0; slot < table.capacity(); slot++) {
+					if (table.size(slot) != 0)
+						consumer.accept(table.keyAt(slot), table, slot);
+				}
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of non-empty buckets.
+	 */
+	long numOfKeys() {
+		long total = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].readLock().lock();
+			try {
+				total += stripes[i].numOfKeys();
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Approximate heap used by all stripes, in bytes.
+	 */
+	long memoryUsage() {
+		return memoryUsage.get();
+	}
+}
@@ -0,0 +1,433 @@
+package lsh.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import lsh.HashingResult;
+import lsh.LSHable;
+
+/**
+ * An append-only log of the adds and removes made to an LSHImpl since its
+ * last snapshot, so they survive a crash.
+ *
+ * Each record holds the item, serialized, together with the signature and
+ * buckets the strategy already computed for it, so replaying the log doesn't
+ * run the strategy again:
+ * <pre>
+ * int length, int crc32 of the body,
+ * body: byte type, int numOfWords, long[] signature, int numOfBuckets, int[] buckets, int itemLength, byte[] item
+ * </pre>
+ *
+ * Appends are group committed: callers queue their records and block while a
+ * single writer thread writes everything queued in one go, syncs it to disk
+ * according to the SyncPolicy, and then releases them all.
+ *
+ * The log is a directory of numbered segment files. Recovery and
+ * checkpointing look like this:
+ * <pre>
+ * LSHImpl index = snapshot.exists() ? Snapshot.load(snapshot, serializer) : new LSHImpl(...);
+ * WriteAheadLog log = WriteAheadLog.open(dir, serializer, SyncPolicy.ALWAYS, 0);
+ * log.replay(index);
+ * index.setWriteAheadLog(log);
+ * ...
+ * index.checkpoint(snapshot, serializer); // writes a snapshot and drops the segments it covers
+ * </pre>
+ * @author Greg
+ *
+ */
+public class WriteAheadLog implements Closeable {
+
+	public enum SyncPolicy {
+		/**
+		 * Sync every group to disk before the appends in it return.
+		 */
+		ALWAYS,
+		/**
+		 * Return once a group is written, and sync at most once per interval.
+		 * A machine crash can lose up to an interval of appends.
+		 */
+		INTERVAL,
+		/**
+		 * Leave syncing to the operating system.
+		 */
+		NONE
+	}
+
+	static final byte ADD = 1;
+	static final byte REMOVE = 2;
+
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int MAX_GROUP_SIZE = 1024;
+
+	private final File directory;
+	private final ItemSerializer serializer;
+	private final SyncPolicy syncPolicy;
+	private final long syncIntervalNanos;
+
+	private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	// queued by close(); the writer stops once it has written everything before it.
+	private final Pending closeMarker = new Pending(null);
+	private final Thread writer;
+	private final Object segmentLock = new Object();
+	// guarded by segmentLock
+	private FileChannel segment;
+	private long segmentNumber;
+	private long lastSync = System.nanoTime();
+	// whether the segment has writes since lastSync.
+	private boolean unsynced = false;
+	// guarded by queue
+	private boolean closed = false;
+
+	private WriteAheadLog(File directory, ItemSerializer serializer, SyncPolicy syncPolicy, long syncIntervalMillis) {
+		this.directory = directory;
+		this.serializer = serializer;
+		this.syncPolicy = syncPolicy;
+		this.syncIntervalNanos = syncIntervalMillis * 1000000L;
+		this.writer = new Thread(this::writeLoop, "lsh-wal-writer");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log in a directory, creating it if needed. New records go to a
+	 * new segment; existing segments are kept for replay.
+	 * @param syncIntervalMillis
+	 *            : Only used by SyncPolicy.INTERVAL.
+	 */
+	public static WriteAheadLog open(File directory, ItemSerializer serializer, SyncPolicy syncPolicy,
+			long syncIntervalMillis) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory);
+		WriteAheadLog log = new WriteAheadLog(directory, serializer, syncPolicy, syncIntervalMillis);
+		long[] existing = log.segmentNumbers();
+		log.openSegment(existing.length == 0 ? 0 : existing[existing.length - 1] + 1);
+		log.writer.start();
+		return log;
+	}
+
+	/**
+	 * Logs an operation, blocking until it is written (and synced, if the
+	 * policy requires it).
+	 * @throws UncheckedIOException
+	 *             if the log couldn't be written.
+	 */
+	void append(byte type, LSHable item, HashingResult result) {
+		Pending pending = new Pending(encode(type, item, result));
+		enqueue(pending);
+		await(pending);
+	}
+
+	/**
+	 * Logs a batch of adds, blocking until all of them are written.
+	 */
+	void appendAll(byte type, LSHable[] items, HashingResult[] results) {
+		Pending[] pendings = new Pending[items.length];
+		for (int i = 0; i < items.length; i++) {
+			pendings[i] = new Pending(encode(type, items[i], results[i]));
+			enqueue(pendings[i]);
+		}
+		for (Pending pending : pendings) {
+			await(pending);
+		}
+	}
+
+	/**
+	 * Closes the current segment and starts a new one. Everything appended
+	 * before this call is in an earlier segment.
+	 * @return the number of the new segment.
+	 */
+	long rotate() throws IOException {
+		/*
+		 * Queue a marker and wait for it, so every record queued before this call
+		 * is written to the old segment first.
+		 */
+		Pending marker = new Pending(null);
+		enqueue(marker);
+		await(marker);
+		synchronized (segmentLock) {
+			segment.force(true);
+			unsynced = false;
+			segment.close();
+			openSegment(segmentNumber + 1);
+			return segmentNumber;
+		}
+	}
+
+	/**
+	 * Deletes the segments numbered below the given one.
+	 */
+	void deleteSegmentsBefore(long number) throws IOException {
+		for (long existing : segmentNumbers()) {
+			if (existing < number && !segmentFile(existing).delete())
+				throw new IOException("Can't delete " + segmentFile(existing));
+		}
+	}
+
+	/**
+	 * Applies every logged operation, oldest first, to an index. Replay is
+	 * idempotent, so operations the index already contains (e.g. because they
+	 * made it into the snapshot it was loaded from) are harmless, as long as
+	 * the items override equals. A record cut
+	 * short by a crash ends the replay of its segment.
+	 * @return the number of operations replayed.
+	 */
+	public long replay(LSHImpl index) throws IOException {
+		long replayed = 0;
+		for (long number : segmentNumbers()) {
+			synchronized (segmentLock) {
+				if (number == segmentNumber)
+					continue; // only holds records made since open.
+			}
+			try (RandomAccessFile file = new RandomAccessFile(segmentFile(number), "r")) {
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				CRC32 crc = new CRC32();
+				while (buffer.remaining() >= 8) {
+					int length = buffer.getInt();
+					int checksum = buffer.getInt();
+					if (length < 0 || length > buffer.remaining())
+						break;
+					byte[] bytes = new byte[length];
+					buffer.get(bytes);
+					crc.reset();
+					crc.update(bytes, 0, length);
+					if ((int) crc.getValue() != checksum)
+						break;
+					replay(ByteBuffer.wrap(bytes), index);
+					replayed++;
+				}
+			}
+		}
+		return replayed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (queue) {
+			if (closed)
+				return;
+			closed = true;
+			queue.add(closeMarker);
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (segmentLock) {
+			segment.force(true);
+			segment.close();
+		}
+	}
+
+	private void replay(ByteBuffer body, LSHImpl index) {
+		byte type = body.get();
+		long[] signature = new long[body.getInt()];
+		for (int i = 0; i < signature.length; i++) {
+			signature[i] = body.getLong();
+		}
+		int[] buckets = new int[body.getInt()];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = body.getInt();
+		}
+		int itemLength = body.getInt();
+		ByteBuffer item = body.slice();
+		item.limit(itemLength);
+		LSHable input = serializer.deserialize(item);
+		HashingResult result = signature.length == 1 ? new HashingResultImpl(signature[0], buckets)
+				: new HashingResultImpl(signature, buckets);
+		if (type == ADD)
+			index.replayAdd(input, result);
+		else if (type == REMOVE)
+			index.replayRemove(input, result);
+	}
+
+	private ByteBuffer encode(byte type, LSHable item, HashingResult result) {
+		byte[] bytes = serializer.serialize(item);
+		int[] buckets = result.getBuckets();
+		long[] signature = result.getSignatureWords();
+		int length = 1 + 4 + 8 * signature.length + 4 + 4 * buckets.length + 4 + bytes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+		buffer.putInt(length);
+		buffer.putInt(0); // crc, filled in below
+		buffer.put(type);
+		buffer.putInt(signature.length);
+		for (long word : signature) {
+			buffer.putLong(word);
+		}
+		buffer.putInt(buckets.length);
+		for (int bucket : buckets) {
+			buffer.putInt(bucket);
+		}
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 8, length);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	private void enqueue(Pending pending) {
+		synchronized (queue) {
+			if (closed)
+				throw new IllegalStateException("The write-ahead log is closed");
+			queue.add(pending);
+		}
+	}
+
+	private void await(Pending pending) {
+		try {
+			pending.done.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? new UncheckedIOException((IOException) cause)
+					: new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * The writer thread: takes everything queued, writes it with one gathering
+	 * write, syncs, and completes the whole group. Under SyncPolicy.INTERVAL it
+	 * also syncs writes that no later group came along to sync once their
+	 * interval is up.
+	 */
+	private void writeLoop() {
+		List<Pending> group = new ArrayList<Pending>();
+		boolean closing = false;
+		while (!closing) {
+			Pending next;
+			try {
+				long untilSync = nanosUntilSync();
+				next = untilSync < 0 ? queue.take() : queue.poll(untilSync, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (next == null) {
+				syncUnsynced();
+				continue;
+			}
+			group.add(next);
+			queue.drainTo(group, MAX_GROUP_SIZE - 1);
+			// nothing can be queued after the close marker.
+			closing = group.get(group.size() - 1) == closeMarker;
+			try {
+				writeGroup(group);
+				for (Pending pending : group) {
+					pending.done.complete(null);
+				}
+			} catch (IOException | RuntimeException e) {
+				for (Pending pending : group) {
+					pending.done.completeExceptionally(e);
+				}
+			}
+			group.clear();
+		}
+	}
+
+	private void writeGroup(List<Pending> group) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[group.size()];
+		int numOfBuffers = 0;
+		long remaining = 0;
+		for (Pending pending : group) {
+			if (pending.record != null) {
+				buffers[numOfBuffers++] = pending.record;
+				remaining += pending.record.remaining();
+			}
+		}
+		synchronized (segmentLock) {
+			ByteBuffer[] toWrite = Arrays.copyOf(buffers, numOfBuffers);
+			while (remaining > 0) {
+				remaining -= segment.write(toWrite);
+			}
+			if (numOfBuffers > 0)
+				unsynced = true;
+			if (syncPolicy == SyncPolicy.ALWAYS
+					|| (syncPolicy == SyncPolicy.INTERVAL && System.nanoTime() - lastSync >= syncIntervalNanos)) {
+				segment.force(false);
+				lastSync = System.nanoTime();
+				unsynced = false;
+			}
+		}
+	}
+
+	/**
+	 * How long the writer can wait for more records before it has to sync, or
+	 * -1 if it has nothing to sync.
+	 */
+	private long nanosUntilSync() {
+		synchronized (segmentLock) {
+			if (syncPolicy != SyncPolicy.INTERVAL || !unsynced)
+				return -1;
+			return Math.max(0, syncIntervalNanos - (System.nanoTime() - lastSync));
+		}
+	}
+
+	private void syncUnsynced() {
+		synchronized (segmentLock) {
+			if (!unsynced)
+				return;
+			try {
+				segment.force(false);
+				unsynced = false;
+			} catch (IOException e) {
+				// nobody is waiting on these writes; try again an interval from now.
+			}
+			lastSync = System.nanoTime();
+		}
+	}
+
+	private void openSegment(long number) throws IOException {
+		synchronized (segmentLock) {
+			RandomAccessFile file = new RandomAccessFile(segmentFile(number), "rw");
+			file.seek(file.length());
+			segment = file.getChannel();
+			segmentNumber = number;
+		}
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	private long[] segmentNumbers() {
+		String[] names = directory.list();
+		if (names == null)
+			return new long[0];
+		long[] numbers = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				numbers[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			}
+		}
+		numbers = Arrays.copyOf(numbers, count);
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * A queued record, or a marker with no record.
+	 */
+	private static class Pending {
+		final ByteBuffer record;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Pending(ByteBuffer record) {
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package lsh.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lsh.HashingResult;
+import lsh.LSHable;
+import lsh.impl.LSHImpl;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * Bulk loads a line-delimited corpus, such as a file of JSON documents, into
+ * an index. Loading is split into stages connected by bounded queues:
+ * <pre>
+ * read    maps the file a chunk at a time, cut at line boundaries
+ * parse   turns each line of a chunk into an item, with a LineParser
+ * hash    hashes a chunk's items with the index's strategy
+ * insert  adds a chunk's items to the index in one batch
+ * </pre>
+ * Parsing and hashing run on several threads each. When a stage falls
+ * behind, the queue in front of it fills and the stages before it wait, so
+ * memory stays bounded by the queue capacity times the chunk size however
+ * big the file is. Each stage keeps StageCounters, which can be read while
+ * the pipeline runs to see which stage is the bottleneck.
+ *
+ * The file is mapped rather than read, so the chunks are never copied onto
+ * the heap. Items are added in file order within a chunk, but chunks may
+ * be inserted out of order.
+ * <pre>
+ * IngestPipeline pipeline = new IngestPipeline(index, () -> new MyParser());
+ * pipeline.run(new File("corpus.json"));
+ * </pre>
+ * @author Greg
+ *
+ */
+public class IngestPipeline {
+
+	// passed down the queues once a stage's input has run out.
+	private static final Object END = new Object();
+	// bytes of the file mapped at a time; chunks are cut from them.
+	private static final int REGION_SIZE = 1 << 30;
+
+	private final LSHImpl index;
+	private final Supplier<? extends LineParser> parsers;
+	private int chunkSize = 8 << 20;
+	private int parseThreads = Runtime.getRuntime().availableProcessors();
+	private int hashThreads = Runtime.getRuntime().availableProcessors();
+	private int queueCapacity = 2 * Runtime.getRuntime().availableProcessors();
+
+	private volatile List<StageCounters> counters = new ArrayList<StageCounters>();
+	private volatile long startTime;
+	private volatile long endTime;
+	// set by the first stage to fail; the others then stop.
+	private volatile Throwable failure;
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * @param parsers
+	 *            : Called once for each parsing thread.
+	 */
+	public IngestPipeline(LSHImpl index, Supplier<? extends LineParser> parsers) {
+		this.index = index;
+		this.parsers = parsers;
+	}
+
+	/**
+	 * @param chunkSize
+	 *            : Bytes of the file mapped and parsed at a time. Chunks grow
+	 *            to hold any line longer than this.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be positive");
+		this.chunkSize = chunkSize;
+	}
+
+	public void setParseThreads(int parseThreads) {
+		if (parseThreads <= 0)
+			throw new IllegalArgumentException("Need at least one parsing thread");
+		this.parseThreads = parseThreads;
+	}
+
+	public void setHashThreads(int hashThreads) {
+		if (hashThreads <= 0)
+			throw new IllegalArgumentException("Need at least one hashing thread");
+		this.hashThreads = hashThreads;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            : Chunks each queue between stages can hold.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0)
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * The counters of the run in progress, or of the last one, in stage
+	 * order.
+	 */
+	public List<StageCounters> getCounters() {
+		return counters;
+	}
+
+	/**
+	 * Nanoseconds the run in progress, or the last one, has taken.
+	 */
+	public long getElapsedNanos() {
+		long end = endTime;
+		return (end == 0 ? System.nanoTime() : end) - startTime;
+	}
+
+	/**
+	 * A line per stage; see StageCounters.report.
+	 */
+	public String report() {
+		long elapsed = getElapsedNanos();
+		StringBuilder sb = new StringBuilder();
+		for (StageCounters stage : counters) {
+			sb.append(stage.report(elapsed)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Loads a file into the index and waits until every line is in it. If a
+	 * stage fails, or the calling thread is interrupted, the other stages are
+	 * stopped and the error is thrown here; whatever was inserted by then
+	 * stays in the index.
+	 * @return the number of items added.
+	 */
+	public synchronized long run(File file) throws IOException {
+		final StageCounters read = new StageCounters("read", "bytes", 1);
+		final StageCounters parse = new StageCounters("parse", "lines", parseThreads);
+		final StageCounters hash = new StageCounters("hash", "items", hashThreads);
+		final StageCounters insert = new StageCounters("insert", "items", 1);
+		counters = Arrays.asList(read, parse, hash, insert);
+		failure = null;
+		endTime = 0;
+		startTime = System.nanoTime();
+
+		final BlockingQueue<Object> chunks = new ArrayBlockingQueue<Object>(queueCapacity);
+		final BlockingQueue<Object> parsed = new ArrayBlockingQueue<Object>(queueCapacity);
+		final BlockingQueue<Object> hashed = new ArrayBlockingQueue<Object>(queueCapacity);
+		final LSHStrategy strategy = index.getStrategy();
+
+		synchronized (threads) {
+			threads.clear();
+		}
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			start("read", () -> readChunks(channel, chunks, read));
+			AtomicInteger parsing = new AtomicInteger(parseThreads);
+			for (int i = 0; i < parseThreads; i++) {
+				final LineParser parser = parsers.get();
+				start("parse-" + i, () -> work(chunks, parsed, parse, parsing, chunk -> parseLines((ByteBuffer) chunk, parser, parse)));
+			}
+			AtomicInteger hashing = new AtomicInteger(hashThreads);
+			for (int i = 0; i < hashThreads; i++) {
+				start("hash-" + i, () -> work(parsed, hashed, hash, hashing, batch -> hashItems((LSHable[]) batch, strategy, hash)));
+			}
+			start("insert", () -> work(hashed, null, insert, new AtomicInteger(1), batch -> {
+				Batch hashedBatch = (Batch) batch;
+				index.addAll(hashedBatch.items, hashedBatch.results);
+				insert.processed(hashedBatch.items.length, 0);
+				return null;
+			}));
+			awaitThreads();
+		} finally {
+			endTime = System.nanoTime();
+			channel.close();
+		}
+
+		Throwable cause = failure;
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		if (cause != null)
+			throw new IllegalStateException(cause);
+		return insert.getItems();
+	}
+
+	/**
+	 * Maps the file a region at a time and queues it in chunks, each ending
+	 * after its last complete line. Chunks are views of the region, so the
+	 * number of mappings stays small whatever the chunk size.
+	 */
+	private void readChunks(FileChannel channel, BlockingQueue<Object> chunks, StageCounters read) throws IOException, InterruptedException {
+		long size = channel.size();
+		long position = 0;
+		long regionSize = Math.max(chunkSize, REGION_SIZE);
+		while (position < size) {
+			long start = System.nanoTime();
+			long length = Math.min(regionSize, size - position);
+			ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			boolean last = position + length == size;
+			int offset = 0;
+			while (offset < length) {
+				int end = chunkEnd(region, offset, last);
+				if (end == -1)
+					break;
+				ByteBuffer chunk = region.duplicate();
+				chunk.limit(end);
+				chunk.position(offset);
+				read.processed(end - offset, System.nanoTime() - start);
+				put(chunks, chunk, read);
+				offset = end;
+				start = System.nanoTime();
+			}
+			if (offset == 0) {
+				// a line longer than the region; map more until its end is in.
+				if (regionSize >= Integer.MAX_VALUE)
+					throw new IOException("Line at byte " + position + " is longer than 2GB");
+				regionSize = Math.min(2 * regionSize, Integer.MAX_VALUE);
+			}
+			position += offset;
+		}
+		put(chunks, END, read);
+	}
+
+	/**
+	 * Finds where a chunk starting at offset should end: after the last
+	 * newline within chunkSize bytes, or after the first one beyond that if
+	 * the line is longer.
+	 * @return -1 if the rest of the region is part of a line that ends in
+	 *         the next one.
+	 */
+	private int chunkEnd(ByteBuffer region, int offset, boolean last) {
+		int limit = region.limit();
+		int end = (int) Math.min(limit, (long) offset + chunkSize);
+		if (end == limit && last)
+			return end;
+		for (int i = end - 1; i >= offset; i--) {
+			if (region.get(i) == '\n')
+				return i + 1;
+		}
+		for (int i = end; i < limit; i++) {
+			if (region.get(i) == '\n')
+				return i + 1;
+		}
+		return last ? limit : -1;
+	}
+
+	private static LSHable[] parseLines(ByteBuffer chunk, LineParser parser, StageCounters parse) {
+		List<LSHable> items = new ArrayList<LSHable>();
+		// one view, moved from line to line.
+		ByteBuffer line = chunk.duplicate();
+		int lines = 0;
+		int start = chunk.position();
+		int end = chunk.limit();
+		for (int i = start; i <= end; i++) {
+			if (i < end && chunk.get(i) != '\n')
+				continue;
+			int lineEnd = i > start && chunk.get(i - 1) == '\r' ? i - 1 : i;
+			if (lineEnd > start) {
+				lines++;
+				line.clear();
+				line.limit(lineEnd);
+				line.position(start);
+				LSHable item = parser.parse(line);
+				if (item != null)
+					items.add(item);
+			}
+			start = i + 1;
+		}
+		parse.dropped(lines - items.size());
+		parse.processed(lines, 0);
+		return items.toArray(new LSHable[items.size()]);
+	}
+
+	private static Batch hashItems(LSHable[] items, LSHStrategy strategy, StageCounters hash) {
+		HashingResult[] results = new HashingResult[items.length];
+		for (int i = 0; i < items.length; i++) {
+			results[i] = strategy.hash(items[i]);
+		}
+		hash.processed(items.length, 0);
+		return new Batch(items, results);
+	}
+
+	/**
+	 * The loop of a stage's thread: takes from its input until END, and
+	 * queues whatever the step returns for the next stage. The last of the
+	 * stage's threads to finish passes END on.
+	 */
+	private void work(BlockingQueue<Object> input, BlockingQueue<Object> output, StageCounters counters,
+			AtomicInteger running, Step step) throws InterruptedException {
+		while (true) {
+			long start = System.nanoTime();
+			Object in = input.take();
+			long taken = System.nanoTime();
+			counters.idle(taken - start);
+			if (in == END) {
+				// let this stage's other threads see it too.
+				input.put(END);
+				if (running.decrementAndGet() == 0 && output != null)
+					put(output, END, counters);
+				return;
+			}
+			Object out = step.apply(in);
+			counters.processed(0, System.nanoTime() - taken);
+			if (out != null)
+				put(output, out, counters);
+		}
+	}
+
+	private static void put(BlockingQueue<Object> queue, Object value, StageCounters counters) throws InterruptedException {
+		long start = System.nanoTime();
+		queue.put(value);
+		counters.blocked(System.nanoTime() - start);
+	}
+
+	private void start(String name, Task task) {
+		Thread thread = new Thread(() -> {
+			try {
+				task.run();
+			} catch (InterruptedException e) {
+				// stopped because another stage failed
+			} catch (Throwable e) {
+				fail(e);
+			}
+		}, "ingest-" + name);
+		thread.setDaemon(true);
+		synchronized (threads) {
+			threads.add(thread);
+			thread.start();
+			// a stage may have failed before this one existed.
+			if (failure != null)
+				thread.interrupt();
+		}
+	}
+
+	private void fail(Throwable e) {
+		synchronized (threads) {
+			if (failure != null)
+				return;
+			failure = e;
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	private void awaitThreads() {
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					// stop the stages; they exit at their next queue operation.
+					interrupted = true;
+					fail(new InterruptedIOException("Ingestion interrupted"));
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private interface Task {
+		void run() throws IOException, InterruptedException;
+	}
+
+	private interface Step {
+		Object apply(Object in);
+	}
+
+	private static final class Batch {
+		final LSHable[] items;
+		final HashingResult[] results;
+
+		Batch(LSHable[] items, HashingResult[] results) {
+			this.items = items;
+			this.results = results;
+		}
+	}
+}
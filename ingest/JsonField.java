@@ -0,0 +1,260 @@
+package lsh.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Pulls the value of one top-level field out of a line of JSON, decoding it
+ * straight from the line's UTF-8 bytes into a reused char buffer. Other
+ * fields are skipped without being decoded, and no Strings are created, so
+ * a parser can extract the text of millions of lines without allocating.
+ *
+ * Not thread-safe; give each thread its own, as LineParsers do.
+ * @author Greg
+ *
+ */
+public final class JsonField {
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private final String name;
+	private char[] chars = new char[256];
+	private CharBuffer view = CharBuffer.wrap(chars);
+	private int length;
+	// the line being read, and the read position in it.
+	private ByteBuffer in;
+	private int position;
+	private int limit;
+
+	/**
+	 * @param name
+	 *            : The field's name, as it appears in the object.
+	 */
+	public JsonField(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Finds the field in a JSON object. A string value is returned unescaped;
+	 * any other value is returned as its JSON text.
+	 * @param line
+	 *            : Holds one JSON object, from its position to its limit. Its
+	 *            position is not changed.
+	 * @return the value, which is only valid until the next call, or null if
+	 *         the object has no such field, the field is null, or the line
+	 *         isn't a JSON object.
+	 */
+	public CharSequence extract(ByteBuffer line) {
+		in = line;
+		position = line.position();
+		limit = line.limit();
+		try {
+			if (!skipWhitespaceTo('{'))
+				return null;
+			position++;
+			if (skipWhitespaceTo('}'))
+				return null;
+			while (true) {
+				if (!skipWhitespaceTo('"'))
+					return null;
+				position++;
+				readString();
+				boolean match = nameMatches();
+				if (!skipWhitespaceTo(':'))
+					return null;
+				position++;
+				skipWhitespace();
+				if (match)
+					return readValue();
+				skipValue();
+				skipWhitespace();
+				if (position >= limit || in.get(position) != ',')
+					return null;
+				position++;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// truncated line
+			return null;
+		} finally {
+			in = null;
+		}
+	}
+
+	private CharSequence readValue() {
+		byte first = in.get(position);
+		if (first == '"') {
+			position++;
+			readString();
+		} else {
+			int start = position;
+			skipValue();
+			int end = position;
+			if (first == 'n' && end - start == 4)
+				return null;
+			length = 0;
+			for (position = start; position < end;) {
+				int b = in.get(position++);
+				if (b >= 0)
+					append((char) b);
+				else
+					readMultiByte(b);
+			}
+		}
+		view.clear();
+		view.limit(length);
+		return view;
+	}
+
+	/**
+	 * Decodes a string, positioned after its opening quote, into chars.
+	 */
+	private void readString() {
+		length = 0;
+		while (true) {
+			int b = in.get(position++);
+			if (b == '"')
+				return;
+			if (b == '\\') {
+				readEscape();
+			} else if (b >= 0) {
+				append((char) b);
+			} else {
+				readMultiByte(b);
+			}
+		}
+	}
+
+	private void readEscape() {
+		byte b = in.get(position++);
+		switch (b) {
+		case 'n': append('\n'); break;
+		case 't': append('\t'); break;
+		case 'r': append('\r'); break;
+		case 'b': append('\b'); break;
+		case 'f': append('\f'); break;
+		case 'u':
+			int c = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(in.get(position++), 16);
+				if (digit < 0) {
+					append(REPLACEMENT);
+					return;
+				}
+				c = (c << 4) | digit;
+			}
+			append((char) c);
+			break;
+		default:
+			// \" \\ \/ and anything unknown stand for themselves.
+			append((char) b);
+		}
+	}
+
+	private void readMultiByte(int lead) {
+		int extra;
+		int codePoint;
+		if ((lead & 0xE0) == 0xC0) {
+			extra = 1;
+			codePoint = lead & 0x1F;
+		} else if ((lead & 0xF0) == 0xE0) {
+			extra = 2;
+			codePoint = lead & 0x0F;
+		} else if ((lead & 0xF8) == 0xF0) {
+			extra = 3;
+			codePoint = lead & 0x07;
+		} else {
+			append(REPLACEMENT);
+			return;
+		}
+		for (int i = 0; i < extra; i++) {
+			int b = in.get(position);
+			if ((b & 0xC0) != 0x80) {
+				append(REPLACEMENT);
+				return;
+			}
+			position++;
+			codePoint = (codePoint << 6) | (b & 0x3F);
+		}
+		if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+			append(Character.highSurrogate(codePoint));
+			append(Character.lowSurrogate(codePoint));
+		} else {
+			append((char) codePoint);
+		}
+	}
+
+	/**
+	 * Skips a value of any type, including nested objects and arrays.
+	 */
+	private void skipValue() {
+		int depth = 0;
+		while (true) {
+			byte b = in.get(position);
+			if (b == '"') {
+				position++;
+				skipString();
+				if (depth == 0)
+					return;
+				continue;
+			}
+			if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				if (depth == 0)
+					return;
+				depth--;
+			} else if (depth == 0 && (b == ',' || b == ' ' || b == '\t' || b == '\r' || b == '\n')) {
+				return;
+			}
+			position++;
+			if (depth == 0 && (b == '}' || b == ']'))
+				return;
+		}
+	}
+
+	private void skipString() {
+		while (true) {
+			byte b = in.get(position++);
+			if (b == '"')
+				return;
+			if (b == '\\')
+				position++;
+		}
+	}
+
+	private void skipWhitespace() {
+		while (position < limit) {
+			byte b = in.get(position);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+				return;
+			position++;
+		}
+	}
+
+	/**
+	 * @return true if the next non-whitespace byte is the expected one.
+	 */
+	private boolean skipWhitespaceTo(char expected) {
+		skipWhitespace();
+		return position < limit && in.get(position) == expected;
+	}
+
+	private boolean nameMatches() {
+		if (length != name.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (chars[i] != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void append(char c) {
+		if (length == chars.length) {
+			chars = Arrays.copyOf(chars, length * 2);
+			view = CharBuffer.wrap(chars);
+		}
+		chars[length++] = c;
+	}
+}
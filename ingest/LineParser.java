@@ -0,0 +1,24 @@
+package lsh.ingest;
+
+import java.nio.ByteBuffer;
+
+import lsh.LSHable;
+
+/**
+ * Turns one line of a corpus into an item to index. IngestPipeline gives
+ * each of its parsing threads its own parser, so a parser may keep scratch
+ * buffers between calls without synchronizing.
+ * @author Greg
+ *
+ */
+public interface LineParser {
+
+	/**
+	 * @param line
+	 *            : The bytes of the line, without its line terminator. A view
+	 *            of a mapped file that is reused for the next line, so copy out
+	 *            anything the item keeps.
+	 * @return the item, or null to skip the line.
+	 */
+	LSHable parse(ByteBuffer line);
+}
@@ -0,0 +1,113 @@
+package lsh.ingest;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput counters for one stage of an IngestPipeline. They're updated
+ * as the pipeline runs, so another thread can read them to watch progress.
+ *
+ * A stage's time is split three ways: busy doing its work, idle waiting for
+ * input from the stage before it, and blocked waiting for room in the queue
+ * to the stage after it. The slowest stage is the one that is busy while
+ * the others are idle or blocked.
+ * @author Greg
+ *
+ */
+public final class StageCounters {
+
+	private final String name;
+	private final String unit;
+	private final int numOfThreads;
+	private final LongAdder items = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+	private final LongAdder idleNanos = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+
+	StageCounters(String name, String unit, int numOfThreads) {
+		this.name = name;
+		this.unit = unit;
+		this.numOfThreads = numOfThreads;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * What getItems counts, such as "lines".
+	 */
+	public String getUnit() {
+		return unit;
+	}
+
+	public int getNumOfThreads() {
+		return numOfThreads;
+	}
+
+	/**
+	 * The number of units the stage has processed.
+	 */
+	public long getItems() {
+		return items.sum();
+	}
+
+	/**
+	 * The number of units the stage processed but didn't pass on.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Summed over the stage's threads, as are idle and blocked.
+	 */
+	public long getBusyNanos() {
+		return busyNanos.sum();
+	}
+
+	public long getIdleNanos() {
+		return idleNanos.sum();
+	}
+
+	public long getBlockedNanos() {
+		return blockedNanos.sum();
+	}
+
+	void processed(long count, long nanos) {
+		items.add(count);
+		busyNanos.add(nanos);
+	}
+
+	void dropped(long count) {
+		dropped.add(count);
+	}
+
+	void idle(long nanos) {
+		idleNanos.add(nanos);
+	}
+
+	void blocked(long nanos) {
+		blockedNanos.add(nanos);
+	}
+
+	/**
+	 * One line summary: totals, rate over the elapsed time, and how the
+	 * stage's threads spent their time.
+	 */
+	public String report(long elapsedNanos) {
+		long busy = getBusyNanos();
+		long idle = getIdleNanos();
+		long blocked = getBlockedNanos();
+		double total = Math.max(1, busy + idle + blocked);
+		long count = getItems();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-7s x%d %,15d %s %,12.0f/s", name, numOfThreads, count, unit,
+				count * 1e9 / Math.max(1, elapsedNanos)));
+		if (getDropped() > 0)
+			sb.append(String.format(", %,d dropped", getDropped()));
+		sb.append(String.format("  busy %3.0f%% idle %3.0f%% blocked %3.0f%%", 100 * busy / total, 100 * idle / total,
+				100 * blocked / total));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,232 @@
+package lsh.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsh.LSH;
+import lsh.LSHable;
+import lsh.impl.ItemSerializer;
+
+/**
+ * A client for LSHServer. Implements LSH, so it can stand in for a local
+ * index; results are new instances, deserialized from the server's reply.
+ * The server only sees deserialized copies too, so remove finds an item
+ * only if the item's equals compares by value.
+ *
+ * Thread-safe. Every request is sent as soon as it is made, without waiting
+ * for earlier ones to be answered, so requests from any number of threads
+ * are pipelined over the one connection. The async methods return without
+ * waiting at all; addAll uses them to stream its items.
+ *
+ * Server-side failures are thrown as IllegalStateException carrying the
+ * server's message, connection failures as UncheckedIOException.
+ * @author Greg
+ *
+ */
+public class LSHClient implements LSH, Closeable {
+
+	private final SocketChannel channel;
+	private final ItemSerializer serializer;
+	private final Thread reader;
+	private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private final Object writeLock = new Object();
+	// set once the connection is gone; no request can succeed after that.
+	private volatile IOException failure;
+
+	private LSHClient(SocketChannel channel, ItemSerializer serializer) {
+		this.channel = channel;
+		this.serializer = serializer;
+		this.reader = new Thread(this::readLoop, "lsh-client-reader");
+		this.reader.setDaemon(true);
+	}
+
+	public static LSHClient connect(InetSocketAddress address, ItemSerializer serializer) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		LSHClient client = new LSHClient(channel, serializer);
+		client.reader.start();
+		return client;
+	}
+
+	@Override
+	public Collection<LSHable> search(LSHable input, int threshold) {
+		return await(searchAsync(input, threshold));
+	}
+
+	@Override
+	public void add(LSHable input) {
+		await(addAsync(input));
+	}
+
+	@Override
+	public boolean remove(LSHable input) {
+		return await(removeAsync(input));
+	}
+
+	/**
+	 * Streams every add to the server before waiting for any of them.
+	 */
+	@Override
+	public void addAll(Collection<? extends LSHable> inputs) {
+		List<CompletableFuture<Void>> adds = new ArrayList<CompletableFuture<Void>>(inputs.size());
+		for (LSHable input : inputs) {
+			adds.add(addAsync(input));
+		}
+		for (CompletableFuture<Void> add : adds) {
+			await(add);
+		}
+	}
+
+	/**
+	 * Sends all the inputs in one request; the server runs them with its own
+	 * searchAll.
+	 */
+	@Override
+	public List<Collection<LSHable>> searchAll(List<? extends LSHable> inputs, int threshold) {
+		return await(searchAllAsync(inputs, threshold));
+	}
+
+	public CompletableFuture<Void> addAsync(LSHable input) {
+		int requestId = nextRequestId.getAndIncrement();
+		Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.ADD);
+		Protocol.putItem(out, serializer, input);
+		return send(requestId, out.finish()).thenApply(body -> null);
+	}
+
+	public CompletableFuture<Boolean> removeAsync(LSHable input) {
+		int requestId = nextRequestId.getAndIncrement();
+		Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.REMOVE);
+		Protocol.putItem(out, serializer, input);
+		return send(requestId, out.finish()).thenApply(body -> body.get() != 0);
+	}
+
+	public CompletableFuture<Collection<LSHable>> searchAsync(LSHable input, int threshold) {
+		int requestId = nextRequestId.getAndIncrement();
+		Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.SEARCH).putInt(threshold);
+		Protocol.putItem(out, serializer, input);
+		return send(requestId, out.finish()).thenApply(body -> items(body));
+	}
+
+	public CompletableFuture<List<Collection<LSHable>>> searchAllAsync(List<? extends LSHable> inputs, int threshold) {
+		int requestId = nextRequestId.getAndIncrement();
+		Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.SEARCH_ALL).putInt(threshold).putInt(inputs.size());
+		for (LSHable input : inputs) {
+			Protocol.putItem(out, serializer, input);
+		}
+		return send(requestId, out.finish()).thenApply(body -> {
+			int count = body.getInt();
+			List<Collection<LSHable>> results = new ArrayList<Collection<LSHable>>(count);
+			for (int i = 0; i < count; i++) {
+				results.add(items(body));
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Closes the connection. Requests still waiting for a response fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Collection<LSHable> items(ByteBuffer body) {
+		try {
+			return Protocol.getItems(body, serializer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private CompletableFuture<ByteBuffer> send(int requestId, ByteBuffer frame) {
+		CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+		inFlight.put(requestId, response);
+		try {
+			synchronized (writeLock) {
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+		// the reader may have failed everything just before we registered.
+		if (failure != null)
+			fail(failure);
+		return response;
+	}
+
+	private void readLoop() {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				length.clear();
+				readFully(length);
+				ByteBuffer frame = ByteBuffer.allocate(length.getInt(0));
+				readFully(frame);
+				frame.flip();
+				int requestId = frame.getInt();
+				byte status = frame.get();
+				CompletableFuture<ByteBuffer> response = inFlight.remove(requestId);
+				if (response == null)
+					continue;
+				if (status == Protocol.OK)
+					response.complete(frame.slice());
+				else
+					response.completeExceptionally(new IllegalStateException(Protocol.getError(frame)));
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Connection closed by the server");
+		}
+	}
+
+	/**
+	 * Fails every request in flight, and every later one.
+	 */
+	private void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+		for (Integer requestId : inFlight.keySet()) {
+			CompletableFuture<ByteBuffer> response = inFlight.remove(requestId);
+			if (response != null)
+				response.completeExceptionally(new UncheckedIOException(failure));
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package lsh.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsh.LSH;
+import lsh.LSHable;
+import lsh.impl.ItemSerializer;
+
+/**
+ * Serves an LSH index over TCP, so several processes can share one index.
+ * See Protocol for the wire format, and LSHClient for a client.
+ *
+ * A single selector thread does all the socket I/O without blocking. Decoded
+ * requests are run on an executor, one connection at a time in the order
+ * they arrived, so a client can pipeline requests and still see its own
+ * adds. Different connections run in parallel. A connection with too many
+ * requests waiting stops being read until its responses have been written.
+ * <pre>
+ * LSHServer server = LSHServer.start(index, serializer, new InetSocketAddress("localhost", 0));
+ * LSHClient client = LSHClient.connect(server.getAddress(), serializer);
+ * </pre>
+ * @author Greg
+ *
+ */
+public class LSHServer implements Closeable {
+
+	private static final int READ_BUFFER_SIZE = 64 << 10;
+	// requests read from a connection and not yet answered, before reading pauses.
+	private static final int MAX_PENDING_REQUESTS = 1024;
+	// responses a connection's worker may queue before waking the selector.
+	private static final int RESPONSES_PER_WAKEUP = 16;
+
+	private final LSH index;
+	private final ItemSerializer serializer;
+	private final Executor executor;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final Thread selectorThread;
+	// connections whose interest ops need updating by the selector thread.
+	private final ConcurrentLinkedQueue<Connection> interestChanges = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean closed = false;
+
+	private LSHServer(LSH index, ItemSerializer serializer, Executor executor, Selector selector, ServerSocketChannel serverChannel) {
+		this.index = index;
+		this.serializer = serializer;
+		this.executor = executor;
+		this.selector = selector;
+		this.serverChannel = serverChannel;
+		this.selectorThread = new Thread(this::selectLoop, "lsh-server-selector");
+		this.selectorThread.setDaemon(true);
+	}
+
+	/**
+	 * Starts serving an index, running requests on the common pool.
+	 * @param address
+	 *            : Port 0 picks a free port; see getAddress.
+	 */
+	public static LSHServer start(LSH index, ItemSerializer serializer, InetSocketAddress address) throws IOException {
+		return start(index, serializer, address, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param executor
+	 *            : Runs the requests. Requests from one connection never run
+	 *            concurrently.
+	 */
+	public static LSHServer start(LSH index, ItemSerializer serializer, InetSocketAddress address, Executor executor)
+			throws IOException {
+		Selector selector = Selector.open();
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		LSHServer server = new LSHServer(index, serializer, executor, selector, serverChannel);
+		server.selectorThread.start();
+		return server;
+	}
+
+	/**
+	 * The address the server is listening on.
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones. Requests already
+	 * running finish, but their responses are dropped.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void selectLoop() {
+		try {
+			while (!closed) {
+				selector.select();
+				Connection changed;
+				while ((changed = interestChanges.poll()) != null) {
+					changed.updateInterest();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.write();
+					} catch (IOException | CancelledKeyException e) {
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the selector itself failed; nothing more can be served.
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key.channel());
+			}
+			closeQuietly(selector);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	/**
+	 * Runs one request and encodes its response.
+	 */
+	private ByteBuffer handle(ByteBuffer request) {
+		int requestId = request.getInt();
+		byte op = request.get();
+		try {
+			switch (op) {
+			case Protocol.ADD:
+				index.add(Protocol.getItem(request, serializer));
+				return Protocol.frame(requestId, Protocol.OK).finish();
+			case Protocol.REMOVE: {
+				boolean removed = index.remove(Protocol.getItem(request, serializer));
+				return Protocol.frame(requestId, Protocol.OK).put((byte) (removed ? 1 : 0)).finish();
+			}
+			case Protocol.SEARCH: {
+				int threshold = request.getInt();
+				Collection<LSHable> results = index.search(Protocol.getItem(request, serializer), threshold);
+				Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.OK);
+				Protocol.putItems(out, serializer, results, results.size());
+				return out.finish();
+			}
+			case Protocol.SEARCH_ALL: {
+				int threshold = request.getInt();
+				List<Collection<LSHable>> results = index.searchAll(Protocol.getItems(request, serializer), threshold);
+				Protocol.FrameWriter out = Protocol.frame(requestId, Protocol.OK);
+				out.putInt(results.size());
+				for (Collection<LSHable> result : results) {
+					Protocol.putItems(out, serializer, result, result.size());
+				}
+				return out.finish();
+			}
+			default:
+				throw new IllegalArgumentException("Unknown operation " + op);
+			}
+		} catch (IOException | RuntimeException e) {
+			return Protocol.error(requestId, e);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * One client connection. Reading, writing and interest changes happen on
+	 * the selector thread; requests run on the executor, one at a time.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		// responses being written; selector thread only.
+		private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+		private final ConcurrentLinkedQueue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger pendingRequests = new AtomicInteger();
+		// guarded by this
+		private final ArrayDeque<ByteBuffer> requests = new ArrayDeque<ByteBuffer>();
+		private boolean running = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			int needed = 0;
+			while (readBuffer.remaining() >= 4) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length < Protocol.HEADER_SIZE || length > Protocol.MAX_FRAME_SIZE)
+					throw new IOException("Bad frame length " + length);
+				if (readBuffer.remaining() < 4 + length) {
+					needed = 4 + length;
+					break;
+				}
+				readBuffer.getInt();
+				ByteBuffer request = ByteBuffer.allocate(length);
+				int limit = readBuffer.limit();
+				readBuffer.limit(readBuffer.position() + length);
+				request.put(readBuffer);
+				readBuffer.limit(limit);
+				request.flip();
+				submit(request);
+			}
+			readBuffer.compact();
+			if (needed > readBuffer.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(needed);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+			updateInterest();
+		}
+
+		void write() throws IOException {
+			ByteBuffer response;
+			while ((response = responses.poll()) != null) {
+				writing.add(response);
+			}
+			if (!writing.isEmpty()) {
+				channel.write(writing.toArray(new ByteBuffer[writing.size()]));
+				while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+					writing.poll();
+					pendingRequests.decrementAndGet();
+				}
+			}
+			updateInterest();
+		}
+
+		void updateInterest() {
+			if (!key.isValid())
+				return;
+			int ops = 0;
+			if (pendingRequests.get() < MAX_PENDING_REQUESTS)
+				ops |= SelectionKey.OP_READ;
+			if (!writing.isEmpty() || !responses.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		void close() {
+			key.cancel();
+			closeQuietly(channel);
+		}
+
+		private void submit(ByteBuffer request) {
+			pendingRequests.incrementAndGet();
+			boolean start;
+			synchronized (this) {
+				requests.add(request);
+				start = !running;
+				running = true;
+			}
+			if (start)
+				executor.execute(this::drain);
+		}
+
+		/**
+		 * Runs queued requests in order until there are none left.
+		 */
+		private void drain() {
+			int unannounced = 0;
+			while (true) {
+				ByteBuffer request;
+				synchronized (this) {
+					request = requests.poll();
+					if (request == null)
+						running = false;
+				}
+				if (request == null || unannounced == RESPONSES_PER_WAKEUP) {
+					interestChanges.add(this);
+					selector.wakeup();
+					unannounced = 0;
+				}
+				if (request == null)
+					return;
+				responses.add(handle(request));
+				unannounced++;
+			}
+		}
+	}
+}
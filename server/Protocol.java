@@ -0,0 +1,146 @@
+package lsh.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import lsh.LSHable;
+import lsh.impl.ItemSerializer;
+
+/**
+ * The wire format shared by LSHServer and LSHClient. All big-endian.
+ * <pre>
+ * request   int length, int requestId, byte op, body
+ * response  int length, int requestId, byte status, body
+ *
+ * op          request body                        response body
+ * ADD         item                                (none)
+ * REMOVE      item                                byte removed
+ * SEARCH      int threshold, item                 items
+ * SEARCH_ALL  int threshold, int count, items...  int count, items... per input
+ *
+ * item   int length, byte[] serialized
+ * items  int count, item...
+ * error  status ERROR, body int length, byte[] UTF-8 message
+ * </pre>
+ * length counts everything after itself. Requests on one connection are
+ * executed, and answered, in the order they were sent.
+ * @author Greg
+ *
+ */
+final class Protocol {
+
+	static final byte ADD = 1;
+	static final byte REMOVE = 2;
+	static final byte SEARCH = 3;
+	static final byte SEARCH_ALL = 4;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	// requestId and op/status
+	static final int HEADER_SIZE = 4 + 1;
+	static final int MAX_FRAME_SIZE = 64 << 20;
+
+	// all methods static; private constructor.
+	private Protocol() {}
+
+	/**
+	 * Starts a frame: reserves the length, which finish fills in.
+	 */
+	static FrameWriter frame(int requestId, byte opOrStatus) {
+		FrameWriter out = new FrameWriter();
+		out.putInt(0).putInt(requestId).put(opOrStatus);
+		return out;
+	}
+
+	static void putItem(FrameWriter out, ItemSerializer serializer, LSHable item) {
+		byte[] bytes = serializer.serialize(item);
+		out.putInt(bytes.length).put(bytes);
+	}
+
+	static void putItems(FrameWriter out, ItemSerializer serializer, Iterable<LSHable> items, int count) {
+		out.putInt(count);
+		for (LSHable item : items) {
+			putItem(out, serializer, item);
+		}
+	}
+
+	static LSHable getItem(ByteBuffer in, ItemSerializer serializer) throws IOException {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining())
+			throw new IOException("Malformed item of length " + length);
+		ByteBuffer bytes = in.slice();
+		bytes.limit(length);
+		in.position(in.position() + length);
+		return serializer.deserialize(bytes);
+	}
+
+	static List<LSHable> getItems(ByteBuffer in, ItemSerializer serializer) throws IOException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / 4)
+			throw new IOException("Malformed item count " + count);
+		List<LSHable> items = new ArrayList<LSHable>(count);
+		for (int i = 0; i < count; i++) {
+			items.add(getItem(in, serializer));
+		}
+		return items;
+	}
+
+	static ByteBuffer error(int requestId, Throwable e) {
+		String message = e.getMessage() == null ? e.getClass().getName() : e.getClass().getName() + ": " + e.getMessage();
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		return frame(requestId, ERROR).putInt(bytes.length).put(bytes).finish();
+	}
+
+	static String getError(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A growable buffer for building one frame.
+	 */
+	static final class FrameWriter {
+		private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+		FrameWriter putInt(int value) {
+			ensure(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		FrameWriter put(byte value) {
+			ensure(1);
+			buffer.put(value);
+			return this;
+		}
+
+		FrameWriter put(byte[] bytes) {
+			ensure(bytes.length);
+			buffer.put(bytes);
+			return this;
+		}
+
+		/**
+		 * Fills in the length and returns the frame, ready to be written.
+		 */
+		ByteBuffer finish() {
+			buffer.putInt(0, buffer.position() - 4);
+			buffer.flip();
+			return buffer;
+		}
+
+		private void ensure(int bytes) {
+			if (buffer.remaining() >= bytes)
+				return;
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
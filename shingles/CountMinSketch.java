@@ -0,0 +1,104 @@
+package lsh.shingles;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import lsh.strategies.IntHash;
+
+/**
+ * Approximate counts of a stream of hashed items, such as shingles, in a
+ * fixed amount of memory. Estimates are never below an item's true count,
+ * and are above it by at most about e / width of the total added, in all
+ * but a fraction e^-depth of cases.
+ *
+ * Updates are conservative: an add only raises the counters that hold the
+ * item's current estimate, which keeps the overestimates of rare items much
+ * lower than the bound on skewed streams like text. Counters are updated
+ * with compare-and-set, so any number of threads can add at once.
+ * @author Greg
+ *
+ */
+public final class CountMinSketch {
+
+	private final int depth;
+	private final int mask;
+	private final long seed;
+	// depth rows of width counters, one after the other.
+	private final AtomicIntegerArray counters;
+
+	/**
+	 * @param width
+	 *            : Counters per row, rounded up to a power of two.
+	 * @param depth
+	 *            : Rows, each indexed by a different hash.
+	 */
+	public CountMinSketch(int width, int depth) {
+		this(width, depth, IntHash.DEFAULT_SEED_64);
+	}
+
+	public CountMinSketch(int width, int depth, long seed) {
+		if (width <= 0 || width > 1 << 30)
+			throw new IllegalArgumentException("Width must be between 1 and 2^30, not " + width);
+		int rowSize = Integer.bitCount(width) == 1 ? width : Integer.highestOneBit(width) << 1;
+		if (depth <= 0 || (long) depth * rowSize > 1 << 30)
+			throw new IllegalArgumentException("Depth " + depth + " makes the sketch too big");
+		this.depth = depth;
+		this.mask = rowSize - 1;
+		this.seed = seed;
+		this.counters = new AtomicIntegerArray(rowSize * depth);
+	}
+
+	/**
+	 * Counts one more occurrence of an item.
+	 * @return the item's estimated count, including this one.
+	 */
+	public int add(long item) {
+		long hash = IntHash.hash64(item, seed);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		int current = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			current = Math.min(current, counters.get(index(row, h1, h2)));
+		}
+		if (current == Integer.MAX_VALUE)
+			return current;
+		int updated = current + 1;
+		for (int row = 0; row < depth; row++) {
+			int i = index(row, h1, h2);
+			int counter = counters.get(i);
+			// raise it to the new estimate, unless another add already has.
+			while (counter < updated && !counters.compareAndSet(i, counter, updated)) {
+				counter = counters.get(i);
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * @return the item's estimated count.
+	 */
+	public int estimate(long item) {
+		long hash = IntHash.hash64(item, seed);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters.get(index(row, h1, h2)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Approximate heap used by the counters, in bytes.
+	 */
+	public long memoryUsage() {
+		return 4L * counters.length();
+	}
+
+	/**
+	 * Each row's index comes from combining two halves of one hash, which
+	 * is as good as a separate hash per row for this purpose.
+	 */
+	private int index(int row, int h1, int h2) {
+		return row * (mask + 1) + ((h1 + row * h2) & mask);
+	}
+}
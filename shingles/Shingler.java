@@ -0,0 +1,258 @@
+package lsh.shingles;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import lsh.strategies.IntHash;
+
+/**
+ * Breaks text into k-shingles, of characters or of words, and hashes each
+ * one as it goes. The text is read in place, from a CharSequence or from
+ * UTF-8 bytes, and the hashes are written to a primitive buffer the shingler
+ * reuses, so no Strings or boxed values are created. A document's shingles
+ * can be passed straight to a PrimitiveLSHable:
+ * <pre>
+ * Shingler shingler = new Shingler(Shingler.Unit.WORDS, 2);
+ * shingler.shingle(text);
+ * int[] features = shingler.toIntArray();
+ * </pre>
+ * Text is compared case-insensitively. Character shingles treat any run of
+ * whitespace as a single space; word shingles take a word to be a run of
+ * letters and digits, and ignore everything else. Text shorter than one
+ * shingle produces a single shingle of all of it, so short documents still
+ * have a feature. The same text gives the same hashes whichever form it is
+ * read from.
+ *
+ * Shingles are hashed with a rolling (cyclic polynomial) hash over the
+ * hashes of their units, so each one costs the same however big k is.
+ *
+ * Not thread-safe; give each thread its own.
+ * @author Greg
+ *
+ */
+public final class Shingler {
+
+	public enum Unit {
+		CHARACTERS, WORDS
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int REPLACEMENT = 0xFFFD;
+
+	private final Unit unit;
+	private final int k;
+	private final boolean wide;
+	private final long seed;
+
+	private int[] hashes;
+	private long[] longHashes;
+	private int size;
+
+	// rolling state for the text being shingled.
+	private final long[] window;
+	private int numOfUnits;
+	private long rolling;
+	private long word;
+	private boolean inWord;
+	private boolean afterSpace;
+
+	/**
+	 * Produces 32 bit hashes.
+	 * @param k
+	 *            : Units per shingle.
+	 */
+	public Shingler(Unit unit, int k) {
+		this(unit, k, 32, IntHash.DEFAULT_SEED_64);
+	}
+
+	/**
+	 * @param hashBits
+	 *            : 32 or 64.
+	 * @param seed
+	 *            : Shingles only compare equal when hashed with the same seed.
+	 */
+	public Shingler(Unit unit, int k, int hashBits, long seed) {
+		if (k <= 0)
+			throw new IllegalArgumentException("Shingles need at least one unit");
+		if (hashBits != 32 && hashBits != 64)
+			throw new IllegalArgumentException("Hashes can be 32 or 64 bits, not " + hashBits);
+		this.unit = unit;
+		this.k = k;
+		this.wide = hashBits == 64;
+		this.seed = seed;
+		this.window = new long[k];
+		if (wide)
+			longHashes = new long[64];
+		else
+			hashes = new int[64];
+	}
+
+	/**
+	 * Shingles text, replacing the previous text's hashes.
+	 * @return the number of shingles.
+	 */
+	public int shingle(CharSequence text) {
+		begin();
+		for (int i = 0, n = text.length(); i < n;) {
+			char c = text.charAt(i++);
+			if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(text.charAt(i))) {
+				accept(Character.toCodePoint(c, text.charAt(i++)));
+			} else {
+				accept(c);
+			}
+		}
+		return end();
+	}
+
+	/**
+	 * Shingles UTF-8 text, replacing the previous text's hashes. Malformed
+	 * bytes are read as U+FFFD.
+	 * @param utf8
+	 *            : Read from its position to its limit, which are not changed.
+	 * @return the number of shingles.
+	 */
+	public int shingle(ByteBuffer utf8) {
+		begin();
+		int limit = utf8.limit();
+		int i = utf8.position();
+		while (i < limit) {
+			int b = utf8.get(i++);
+			if (b >= 0) {
+				accept(b);
+				continue;
+			}
+			int extra;
+			int codePoint;
+			if ((b & 0xE0) == 0xC0) {
+				extra = 1;
+				codePoint = b & 0x1F;
+			} else if ((b & 0xF0) == 0xE0) {
+				extra = 2;
+				codePoint = b & 0x0F;
+			} else if ((b & 0xF8) == 0xF0) {
+				extra = 3;
+				codePoint = b & 0x07;
+			} else {
+				accept(REPLACEMENT);
+				continue;
+			}
+			for (; extra > 0; extra--) {
+				if (i == limit || (utf8.get(i) & 0xC0) != 0x80) {
+					codePoint = REPLACEMENT;
+					break;
+				}
+				codePoint = (codePoint << 6) | (utf8.get(i++) & 0x3F);
+			}
+			accept(codePoint);
+		}
+		return end();
+	}
+
+	/**
+	 * The number of shingles in the last text.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The 32 bit hashes of the last text, in the first size() entries. The
+	 * array is reused by the next call.
+	 */
+	public int[] hashes() {
+		if (wide)
+			throw new IllegalStateException("This shingler produces 64 bit hashes");
+		return hashes;
+	}
+
+	/**
+	 * The 64 bit hashes of the last text, in the first size() entries. The
+	 * array is reused by the next call.
+	 */
+	public long[] longHashes() {
+		if (!wide)
+			throw new IllegalStateException("This shingler produces 32 bit hashes");
+		return longHashes;
+	}
+
+	/**
+	 * A copy of the last text's 32 bit hashes, for an item to keep.
+	 */
+	public int[] toIntArray() {
+		return Arrays.copyOf(hashes(), size);
+	}
+
+	/**
+	 * A copy of the last text's 64 bit hashes, for an item to keep.
+	 */
+	public long[] toLongArray() {
+		return Arrays.copyOf(longHashes(), size);
+	}
+
+	private void begin() {
+		size = 0;
+		numOfUnits = 0;
+		rolling = 0;
+		word = FNV_OFFSET;
+		inWord = false;
+		// so leading whitespace is skipped.
+		afterSpace = true;
+	}
+
+	private int end() {
+		if (inWord)
+			unit(word);
+		if (numOfUnits > 0 && numOfUnits < k)
+			emit(rolling);
+		return size;
+	}
+
+	private void accept(int codePoint) {
+		if (unit == Unit.CHARACTERS) {
+			if (Character.isWhitespace(codePoint)) {
+				if (afterSpace)
+					return;
+				afterSpace = true;
+				unit(' ');
+			} else {
+				afterSpace = false;
+				unit(Character.toLowerCase(codePoint));
+			}
+		} else if (Character.isLetterOrDigit(codePoint)) {
+			word = (word ^ Character.toLowerCase(codePoint)) * FNV_PRIME;
+			inWord = true;
+		} else if (inWord) {
+			unit(word);
+			word = FNV_OFFSET;
+			inWord = false;
+		}
+	}
+
+	/**
+	 * Rolls the next unit into the hash, and emits the shingle it completes.
+	 */
+	private void unit(long value) {
+		long hash = IntHash.hash64(value, seed);
+		int slot = numOfUnits % k;
+		rolling = Long.rotateLeft(rolling, 1) ^ hash;
+		if (numOfUnits >= k)
+			rolling ^= Long.rotateLeft(window[slot], k);
+		window[slot] = hash;
+		numOfUnits++;
+		if (numOfUnits >= k)
+			emit(rolling);
+	}
+
+	private void emit(long hash) {
+		if (wide) {
+			if (size == longHashes.length)
+				longHashes = Arrays.copyOf(longHashes, size * 2);
+			longHashes[size++] = hash;
+		} else {
+			if (size == hashes.length)
+				hashes = Arrays.copyOf(hashes, size * 2);
+			hashes[size++] = (int) (hash ^ (hash >>> 32));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package lsh.shingles;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops shingles that are too common to say anything about similarity,
+ * such as the pairs of stop words most documents share. Left in, they cost
+ * hashing time and make documents look alike, and the buckets they
+ * dominate grow without bound.
+ *
+ * Counts are kept in a CountMinSketch and updated as each document is
+ * filtered, so the filter works on a stream in fixed memory, with no first
+ * pass over the corpus. A shingle is dropped once it has been seen more
+ * than maxCount times in all; documents filtered before it got there keep
+ * it. The sketch can overestimate, so a shingle a little below maxCount is
+ * occasionally dropped too.
+ *
+ * Thread-safe; one filter is meant to be shared by every thread shingling
+ * the same corpus.
+ * @author Greg
+ *
+ */
+public final class StopShingleFilter {
+
+	private static final int DEFAULT_WIDTH = 1 << 20;
+	private static final int DEFAULT_DEPTH = 4;
+
+	private final int maxCount;
+	private final CountMinSketch sketch;
+	private final LongAdder seen = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Uses a 16MB sketch, which keeps estimates within a few thousand of the
+	 * true counts for streams of up to about a billion shingles.
+	 * @param maxCount
+	 *            : Occurrences of a shingle kept before it is dropped.
+	 */
+	public StopShingleFilter(int maxCount) {
+		this(maxCount, new CountMinSketch(DEFAULT_WIDTH, DEFAULT_DEPTH));
+	}
+
+	/**
+	 * @param sketch
+	 *            : Holds the counts; may already have some.
+	 */
+	public StopShingleFilter(int maxCount, CountMinSketch sketch) {
+		if (maxCount <= 0)
+			throw new IllegalArgumentException("Max count must be positive");
+		this.maxCount = maxCount;
+		this.sketch = sketch;
+	}
+
+	/**
+	 * Counts a document's shingles and moves the ones to keep to the front,
+	 * in order.
+	 * @param shingles
+	 *            : The first length entries are the document's shingles,
+	 *            e.g. Shingler.hashes().
+	 * @return the number kept.
+	 */
+	public int filter(int[] shingles, int length) {
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			if (sketch.add(shingles[i]) <= maxCount)
+				shingles[kept++] = shingles[i];
+		}
+		counted(length, kept);
+		return kept;
+	}
+
+	/**
+	 * As filter(int[], int), for 64 bit shingles.
+	 */
+	public int filter(long[] shingles, int length) {
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			if (sketch.add(shingles[i]) <= maxCount)
+				shingles[kept++] = shingles[i];
+		}
+		counted(length, kept);
+		return kept;
+	}
+
+	/**
+	 * Whether a shingle would be dropped now, without counting it.
+	 */
+	public boolean isStopShingle(long shingle) {
+		return sketch.estimate(shingle) > maxCount;
+	}
+
+	public CountMinSketch getSketch() {
+		return sketch;
+	}
+
+	/**
+	 * The number of shingles filtered.
+	 */
+	public long getSeen() {
+		return seen.sum();
+	}
+
+	/**
+	 * The number of shingles dropped.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private void counted(int length, int kept) {
+		seen.add(length);
+		dropped.add(length - kept);
+	}
+}
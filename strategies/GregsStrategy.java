@@ -2,174 +2,267 @@ package lsh.strategies;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import lsh.HashingResult;
 import lsh.LSHable;
 import lsh.impl.HashingResultImpl;
+import lsh.impl.ParallelRange;
 
 /**
- * A custom strategy I was trying. Doesn't seem to work as well.  
- * 
- * Strategy: Use a predetermined set of random numbers. For each random number
- * combined with each input, generate a score of + or -1 in some independent
- * fashion. Total scores above 0 get a minhash of 1; scores below 0 get a
- * minhash of 0.
- * 
- * The trick is that we generate thrice the desired number of minhashes and
- * bands, and then pare the results by eliminating the results that are most
- * likely to change.
- * 
- * TODO:
- * Your solution of selecting the best minhashes introduces a bias towards
- * minhashes that don't split your population evenly. Eliminate this, either
- * by selecting minhashes initially using training data that split your data evenly,
- * or by dynamically choosing a splitting point for each minhash.
- * 
+ * A custom strategy I was trying.
+ *
+ * Strategy: Use a set of random projections. Each projection gives every
+ * feature a score of + or -1, looked up in a table by the feature's hash.
+ * An input whose total score is above the projection's split point gets a
+ * minhash of 1; otherwise a minhash of 0. Bands are made of sizeOfBands of
+ * these bits, and the signature of the first 64. A bit says less than a
+ * minhash, so bands need to be wider and more numerous than
+ * RandomHashStrategy's: on the Test devices, 40 bands of 12 find about as
+ * many as RandomHashStrategy's 20 bands of 6.
+ *
+ * Training: numOfMinhashesToTest candidate projections are scored on the
+ * training data, in parallel on the common pool. Each candidate's split
+ * point is the median of its scores, so it divides the training data
+ * evenly, unless many items tie on the median. Candidates that still don't
+ * divide it evenly are dropped, and of the rest, the numOfMinhashes most
+ * stable are kept: those that leave the training items' scores furthest
+ * from the split point, relative to the items' sizes, so changing a few
+ * features is least likely to flip their bits. Without training data, the
+ * first numOfMinhashes candidates are kept, split at 0.
+ *
+ * The kept projections are stored together, one row per table slot, so
+ * hashing adds a feature's row to the running scores in a single pass over
+ * the input.
+ *
  * @author Greg
  *
  */
 public class GregsStrategy implements LSHStrategy{
 
-	int[][] positiveOrNegative;
+	private static final int TABLE_BITS = 10;
+	private static final int TABLE_SIZE = 1 << TABLE_BITS;
+	// training uses at most this many items, since it keeps a score per item per candidate.
+	private static final int MAX_TRAINING_ITEMS = 4096;
+	// how far from one half the share of training items above the split may be.
+	private static final double MAX_IMBALANCE = 0.1;
+
 	private final int numOfMinhashesToTest;
 	private final int numOfMinhashes;
 	private final int sizeOfBands;
-	
-	public GregsStrategy(int numOfMinhashes, int sizeOfBands, int numOfMinhashesToTest, Set<LSHable> trainingData){
+	// TABLE_SIZE rows of numOfMinhashes signs, +1 or -1.
+	private final byte[] projections;
+	private final int[] splits;
+	private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue(){
+			return new int[numOfMinhashes];
+		}
+	};
+
+	public GregsStrategy(int numOfMinhashes, int sizeOfBands, int numOfMinhashesToTest, Collection<? extends LSHable> trainingData){
+		this(numOfMinhashes, sizeOfBands, numOfMinhashesToTest, trainingData, new Random().nextLong());
+	}
+
+	/**
+	 * Seeded, so that the same seed and training data produce the same
+	 * strategy in every JVM.
+	 * @param numOfMinhashesToTest
+	 *            : The number of candidate projections to pick the
+	 *            numOfMinhashes from.
+	 * @param trainingData
+	 *            : Items like the ones to be hashed. Only the first 4096 are
+	 *            used.
+	 */
+	public GregsStrategy(int numOfMinhashes, int sizeOfBands, int numOfMinhashesToTest, Collection<? extends LSHable> trainingData, long seed){
+		if(sizeOfBands < 1 || sizeOfBands > 32)
+			throw new IllegalArgumentException("Bands must have 1 to 32 minhashes");
+		if(numOfMinhashesToTest < numOfMinhashes)
+			throw new IllegalArgumentException("At least numOfMinhashes candidates must be tested");
 		this.numOfMinhashes = numOfMinhashes;
 		this.numOfMinhashesToTest = numOfMinhashesToTest;
 		this.sizeOfBands = sizeOfBands;
-		List<Integer> randomPlusOrMinusOne = new ArrayList<Integer>();
-		for(int j = 0; j < 1000; j++){
-			if(j < 500){
-				randomPlusOrMinusOne.add(1);
-			}else{
-				randomPlusOrMinusOne.add(-1);
+
+		Random random = new Random(seed);
+		byte[] candidates = randomProjections(numOfMinhashesToTest, random);
+		int[] candidateSplits = new int[numOfMinhashesToTest];
+		int[] kept;
+		if(trainingData.isEmpty()){
+			kept = new int[numOfMinhashes];
+			for(int j = 0; j < numOfMinhashes; j++){
+				kept[j] = j;
 			}
+		}else{
+			kept = train(candidates, candidateSplits, trainingData);
+			// stability order would cluster similar projections; spread them over the bands.
+			shuffle(kept, random);
 		}
-		
-		int[][] positiveOrNegative = new int[numOfMinhashesToTest][1000];
-		for(int i = 0; i < numOfMinhashesToTest; i++){
-			Collections.shuffle(randomPlusOrMinusOne);
-			int counter = 0;
-			for(Integer j : randomPlusOrMinusOne){
-				positiveOrNegative[i][counter++] = j;
+
+		this.projections = new byte[TABLE_SIZE * numOfMinhashes];
+		this.splits = new int[numOfMinhashes];
+		for(int j = 0; j < numOfMinhashes; j++){
+			splits[j] = candidateSplits[kept[j]];
+			for(int slot = 0; slot < TABLE_SIZE; slot++){
+				projections[slot * numOfMinhashes + j] = candidates[slot * numOfMinhashesToTest + kept[j]];
 			}
 		}
-		this.positiveOrNegative = positiveOrNegative;
 	}
-	
-	/*private int[][] getMinhashes(int numOfMinhashesToTest, Set<LSHable> trainingData){
-		
-		
-		 * TODO: Priority queue
-		 
-	}*/
-	
-	@Override
-	public HashingResult hash(LSHable input) {
-		
-		Iterable<Integer> itr = input.getInput();
-		/*
-		 * So, we want to sort an array of integers by their absolute value,
-		 * so we can throw out scores close to 0. Unfortunately Java is too
-		 * stupid to allow a primitive comparator, so I'm using this IntHelper
-		 * class as a workaround :( 
-		 */
-		int[] scores = new int[numOfMinhashesToTest];
-		
-		int counter = 0;
-		
-		for(int j = 0; j < numOfMinhashesToTest; j++){
-			int score = 0;
-			for(int i : itr){
-				score += positiveOrNegative[j][Math.abs(i%1000)];
+
+	/**
+	 * TABLE_SIZE rows of count signs. Each projection gives +1 to exactly
+	 * half the slots.
+	 */
+	private static byte[] randomProjections(int count, Random random){
+		byte[] signs = new byte[TABLE_SIZE];
+		byte[] table = new byte[TABLE_SIZE * count];
+		for(int j = 0; j < count; j++){
+			for(int slot = 0; slot < TABLE_SIZE; slot++){
+				signs[slot] = (byte)(slot < TABLE_SIZE / 2 ? 1 : -1);
+			}
+			for(int slot = TABLE_SIZE - 1; slot > 0; slot--){
+				int other = random.nextInt(slot + 1);
+				byte swap = signs[slot];
+				signs[slot] = signs[other];
+				signs[other] = swap;
+			}
+			for(int slot = 0; slot < TABLE_SIZE; slot++){
+				table[slot * count + j] = signs[slot];
 			}
-			scores[counter++] = score;
-		}		
-		
-		int[] minhashes = getBuckets(scores, sizeOfBands);
-		
-		//minhashes[counter++] = (score > 0 ? 1 : 0);
-		/*
-		 * TODO: combining integers is the problem.
-		 */
-		return new HashingResultImpl(getSignature(minhashes), minhashes);
+		}
+		return table;
 	}
-	
+
 	/**
-	 * Side effect: sorts the input array.
-	 * @param scores
-	 * @param sizeOfBands
-	 * @return
+	 * Scores every candidate on the training items, sets each one's split
+	 * point, and picks the balanced, stable ones.
+	 * @return the positions of the numOfMinhashes candidates kept.
 	 */
-	private int[] getBuckets(int[] scores, int sizeOfBands){
-		
-		/*
-		 * We're generating excess buckets, and then we'll filter to return the buckets that are most stable.
-		 * Entry 1: The bucket
-		 * Entry 2: A goodness score for the bucket. 0 is good, higher is worse
-		 */
-		IntegerPair[] testBuckets = new IntegerPair[numOfMinhashesToTest/sizeOfBands];
-		
-		int bucketCounter = 0;
-		int hashesInCurrentBucket = 0;
-		int bucket = 0;
-		int numOfBadScores = 0;
-		/*
-		 * TODO: use probability instead.
-		 */
-		for(int i = 0 ; i < numOfMinhashesToTest; i++){
-			//todo: shift in bits
-			bucket = (bucket <<1) | (scores[i] > 0 ? 1 : 0);
-			if(Math.abs(scores[i]) < 4)
-				numOfBadScores++;
-			if(++hashesInCurrentBucket == sizeOfBands){
-				testBuckets[bucketCounter++] = new IntegerPair(bucket, numOfBadScores);
-				hashesInCurrentBucket = 0;
-				numOfBadScores = 0;
-				bucket = 0;
+	private int[] train(final byte[] candidates, final int[] candidateSplits, Collection<? extends LSHable> trainingData){
+		final int count = numOfMinhashesToTest;
+		final List<int[]> items = new ArrayList<int[]>();
+		for(LSHable item : trainingData){
+			if(items.size() == MAX_TRAINING_ITEMS)
+				break;
+			items.add(HashingUtils.getInput(item));
+		}
+		final int numOfItems = items.size();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+
+		// scores[c * numOfItems + i] is candidate c's score for item i.
+		final int[] scores = new int[count * numOfItems];
+		ParallelRange.forEach(pool, 0, numOfItems, i -> {
+			int[] itemScores = new int[count];
+			score(items.get(i), candidates, count, itemScores);
+			for(int c = 0; c < count; c++){
+				scores[c * numOfItems + i] = itemScores[c];
 			}
-		}		
-		
-		Arrays.sort(testBuckets, new Comparator<IntegerPair>(){
+		});
 
+		final double[] imbalance = new double[count];
+		final double[] stability = new double[count];
+		ParallelRange.forEach(pool, 0, count, c -> {
+			int[] sorted = Arrays.copyOfRange(scores, c * numOfItems, (c + 1) * numOfItems);
+			Arrays.sort(sorted);
+			int split = sorted[(numOfItems - 1) / 2];
+			int above = 0;
+			double margins = 0;
+			for(int i = 0; i < numOfItems; i++){
+				int score = scores[c * numOfItems + i];
+				if(score > split)
+					above++;
+				// how many standard deviations of a random walk of the item's length the score is from the split.
+				margins += Math.min(1, Math.abs(score - split) / Math.sqrt(Math.max(1, items.get(i).length)));
+			}
+			candidateSplits[c] = split;
+			imbalance[c] = Math.abs((double)above / numOfItems - 0.5);
+			stability[c] = margins / numOfItems;
+		});
+
+		List<Integer> ranked = new ArrayList<Integer>(count);
+		for(int c = 0; c < count; c++){
+			ranked.add(c);
+		}
+		// balanced ones first, most stable first; the rest least imbalanced first.
+		Collections.sort(ranked, new Comparator<Integer>(){
 			@Override
-			public int compare(IntegerPair a, IntegerPair b) {
-				if(a.val2 == b.val2)
-					return 0;
-				return (a.val2 < b.val2 ? -1 : 1);
-			}			
+			public int compare(Integer a, Integer b) {
+				boolean balancedA = imbalance[a] <= MAX_IMBALANCE;
+				boolean balancedB = imbalance[b] <= MAX_IMBALANCE;
+				if(balancedA != balancedB)
+					return balancedA ? -1 : 1;
+				if(balancedA)
+					return Double.compare(stability[b], stability[a]);
+				return Double.compare(imbalance[a], imbalance[b]);
+			}
 		});
-		
-		int totalBuckets = numOfMinhashes/sizeOfBands;
-		int[] buckets = new int[totalBuckets];
-		for(int i =0; i < totalBuckets; i++){
-			buckets[i] = testBuckets[i].val1;
+		int[] kept = new int[numOfMinhashes];
+		for(int j = 0; j < numOfMinhashes; j++){
+			kept[j] = ranked.get(j);
 		}
-		
-		return buckets;
+		return kept;
 	}
-	
-	private class IntegerPair{
-		public final int val1;
-		public final int val2;
-		
-		public IntegerPair(int val1, int val2){
-			this.val1 = val1;
-			this.val2 = val2;
+
+	/**
+	 * Adds up each projection's signs over the features, in one pass.
+	 * @param table
+	 *            : TABLE_SIZE rows of count signs.
+	 */
+	private static void score(int[] features, byte[] table, int count, int[] scores){
+		Arrays.fill(scores, 0);
+		for(int feature : features){
+			int row = slot(feature) * count;
+			for(int j = 0; j < count; j++){
+				scores[j] += table[row + j];
+			}
+		}
+	}
+
+	private static int slot(int feature){
+		return IntHash.fmix32(feature) >>> (32 - TABLE_BITS);
+	}
+
+	private static void shuffle(int[] array, Random random){
+		for(int i = array.length - 1; i > 0; i--){
+			int other = random.nextInt(i + 1);
+			int swap = array[i];
+			array[i] = array[other];
+			array[other] = swap;
 		}
-	}	
-	
-	private long getSignature(int[] minHashes){
+	}
+
+	@Override
+	public int getNumOfMinHashes(){
+		return numOfMinhashes;
+	}
+
+	/**
+	 * The input is streamed once, adding each feature's row of the table to
+	 * per-thread scores. Only the result is allocated.
+	 */
+	@Override
+	public HashingResult hash(LSHable input) {
+		int[] features = HashingUtils.getInput(input);
+		int[] scores = scratch.get();
+		score(features, projections, numOfMinhashes, scores);
+
+		int[] buckets = new int[numOfMinhashes / sizeOfBands];
 		long signature = 0;
-		for(int i = 0; i < minHashes.length && i < 64; i++){
-			signature = (signature <<1) | (i&1);
+		for(int band = 0; band < buckets.length; band++){
+			int bits = 0;
+			for(int j = band * sizeOfBands; j < (band + 1) * sizeOfBands; j++){
+				bits = (bits << 1) | (scores[j] > splits[j] ? 1 : 0);
+			}
+			// the band goes into the key, so equal bits in different bands don't share a bucket.
+			buckets[band] = HashingUtils.combineIntegers(band, bits);
+		}
+		for(int j = 0; j < numOfMinhashes && j < 64; j++){
+			signature = (signature << 1) | (scores[j] > splits[j] ? 1 : 0);
 		}
-		return signature;
+		return new HashingResultImpl(signature, buckets);
 	}
 }
@@ -1,7 +1,88 @@
 package lsh.strategies;
 
+import java.util.Arrays;
+import java.util.Collection;
+
+import lsh.LSHable;
+import lsh.PrimitiveLSHable;
+
 public class HashingUtils {
 
+	/**
+	 * Returns an item's features as an int array. PrimitiveLSHables hand over
+	 * their array directly; anything else is copied out of its Iterable once,
+	 * so strategies never have to walk a boxed iterator more than once.
+	 * The returned array must not be modified.
+	 * @param input
+	 * @return
+	 */
+	public static int[] getInput(LSHable input){
+		if(input instanceof PrimitiveLSHable)
+			return ((PrimitiveLSHable)input).getPrimitiveInput();
+		
+		Iterable<Integer> itr = input.getInput();
+		int[] features = new int[itr instanceof Collection ? ((Collection<?>)itr).size() : 16];
+		int size = 0;
+		for(int i : itr){
+			if(size == features.length)
+				features = Arrays.copyOf(features, Math.max(16, features.length*2));
+			features[size++] = i;
+		}
+		return size == features.length ? features : Arrays.copyOf(features, size);
+	}
+
+	/**
+	 * Combine minhashes into a signature of numOfWords longs. Word i holds the
+	 * first digits of minhashes 64*i to 64*i + 63, packed the same way as
+	 * getSignature(int[]), so the first word is always equal to it.
+	 * @param minHashes
+	 * @param numOfWords
+	 * @return
+	 */
+	public static long[] getSignature(int[] minHashes, int numOfWords){
+		long[] toReturn = new long[numOfWords];
+		for(int word = 0; word < numOfWords; word++){
+			long bits = 0;
+			int start = word*64;
+			for(int i = start; i < minHashes.length && i < start + 64; i++){
+				bits = (bits << 1) | (minHashes[i]&1);
+			}
+			toReturn[word] = bits;
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Number of differing bits between two signatures of the same width. A
+	 * plain counted loop, which the JIT unrolls into popcnt instructions.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int hammingDistance(long[] a, long[] b){
+		int differences = 0;
+		for(int i = 0; i < a.length; i++){
+			differences += Long.bitCount(a[i] ^ b[i]);
+		}
+		return differences;
+	}
+	
+	/**
+	 * Number of differing bits between b and the signature stored in a from
+	 * offset on, for signatures kept in flat arrays.
+	 * @param a
+	 * @param offset
+	 * @param b
+	 * @return
+	 */
+	public static int hammingDistance(long[] a, int offset, long[] b){
+		int differences = 0;
+		for(int i = 0; i < b.length; i++){
+			differences += Long.bitCount(a[offset + i] ^ b[i]);
+		}
+		return differences;
+	}
+	
 	/**
 	 * Combine minhashes into a signature. Combines the first digit of every minhash
 	 * into a long.
@@ -18,6 +99,122 @@ public class HashingUtils {
 		return toReturn;
 	}
 	
+	/**
+	 * Combine minhashes into b-bit fingerprints, packed into numOfWords longs.
+	 * Each fingerprint is the low bitsPerMinHash bits of the minhash, mixed
+	 * first so they are uniform whatever the minhashes are. Two different
+	 * minhashes then have the same fingerprint with probability 1/2^b, which
+	 * estimateJaccard corrects for. Fingerprints are packed first minhash
+	 * first, 64/b to a word, like getSignature packs bits, so the first word
+	 * holds the first 64/b of them.
+	 * @param minHashes
+	 * @param bitsPerMinHash
+	 *            : 1, 2 or 4.
+	 * @param numOfWords
+	 * @return
+	 */
+	public static long[] getFingerprints(int[] minHashes, int bitsPerMinHash, int numOfWords){
+		int perWord = 64/bitsPerMinHash;
+		int mask = (1 << bitsPerMinHash) - 1;
+		long[] toReturn = new long[numOfWords];
+		for(int word = 0; word < numOfWords; word++){
+			long bits = 0;
+			int start = word*perWord;
+			for(int i = start; i < minHashes.length && i < start + perWord; i++){
+				bits = (bits << bitsPerMinHash) | (IntHash.fmix32(minHashes[i]) & mask);
+			}
+			toReturn[word] = bits;
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Number of fingerprints that differ, given the xor of two words of
+	 * bitsPerMinHash-bit fingerprints. Each fingerprint's bits are folded
+	 * onto its lowest one before counting. Other widths count bits, so
+	 * plain signatures can pass 0 or 1.
+	 * @param differences
+	 * @param bitsPerMinHash
+	 * @return
+	 */
+	public static int differingFingerprints(long differences, int bitsPerMinHash){
+		switch(bitsPerMinHash){
+		case 2:
+			return Long.bitCount((differences | differences >>> 1) & 0x5555555555555555L);
+		case 4:
+			differences |= differences >>> 1;
+			differences |= differences >>> 2;
+			return Long.bitCount(differences & 0x1111111111111111L);
+		default:
+			return Long.bitCount(differences);
+		}
+	}
+	
+	/**
+	 * Number of differing fingerprints between b and the fingerprints stored
+	 * in a from offset on, the fingerprint counterpart of hammingDistance.
+	 * @param a
+	 * @param offset
+	 * @param b
+	 * @param bitsPerMinHash
+	 * @return
+	 */
+	public static int fingerprintDistance(long[] a, int offset, long[] b, int bitsPerMinHash){
+		int differences = 0;
+		for(int i = 0; i < b.length; i++){
+			differences += differingFingerprints(a[offset + i] ^ b[i], bitsPerMinHash);
+		}
+		return differences;
+	}
+	
+	/**
+	 * Estimates Jaccard similarity from how many of two inputs' b-bit
+	 * fingerprints differ. Fingerprints of different minhashes still agree
+	 * 1/2^b of the time, so the raw share agreeing, P, overestimates it;
+	 * (P - 1/2^b) / (1 - 1/2^b) doesn't. May be slightly negative for
+	 * dissimilar inputs.
+	 * @param differences
+	 * @param numOfFingerprints
+	 * @param bitsPerMinHash
+	 * @return
+	 */
+	public static double estimateJaccard(int differences, int numOfFingerprints, int bitsPerMinHash){
+		double chance = 1.0/(1 << bitsPerMinHash);
+		double agreeing = 1 - (double)differences/numOfFingerprints;
+		return (agreeing - chance)/(1 - chance);
+	}
+	
+	/**
+	 * The most fingerprints that may differ for the estimate of Jaccard
+	 * similarity to still be at least matchThreshold percent.
+	 * @param numOfFingerprints
+	 * @param bitsPerMinHash
+	 * @param matchThreshold
+	 * @return
+	 */
+	public static int maxDifferingFingerprints(int numOfFingerprints, int bitsPerMinHash, int matchThreshold){
+		// numOfFingerprints * (1 - 1/2^b) * (1 - threshold/100), rounded down.
+		long values = 1L << bitsPerMinHash;
+		return (int)((long)numOfFingerprints * (values - 1) * (100 - matchThreshold) / (values * 100));
+	}
+	
+	/**
+	 * How minhashes are mixed together into band keys.
+	 */
+	public enum Mixing {
+		/**
+		 * Allocation-free MurmurHash3 on ints. The default.
+		 */
+		MURMUR3,
+		/**
+		 * MurmurHash2 over big-endian bytes, as originally used by combineIntegers.
+		 * Produces the same bucket values as before, bit-for-bit.
+		 */
+		LEGACY
+	}
+	
+	public static final Mixing DEFAULT_MIXING = Mixing.MURMUR3;
+	
 	/**
 	 * Helper method for deterministically combining integers into a hash.
 	 * The goal is create a hash so that our data is spread uniformly across buckets.
@@ -27,12 +224,18 @@ public class HashingUtils {
 	 * @return
 	 */
 	public static int combineIntegers(int a, int b){
+		return combineIntegers(a, b, DEFAULT_MIXING);
+	}
+	
+	public static int combineIntegers(int a, int b, Mixing mixing){
 			//circular bitshift. Shuffles bits to produce a more random hash.
 		/*	a =  (a >>> a) | (a << (Integer.SIZE - a)); 
 			a ^=b; //xor to combine hashes.
 			return a;*/
-			 		
-		return MurmurHash.combineIntegers(a, b);
+		
+		if(mixing == Mixing.LEGACY)
+			return IntHash.murmur2(a, b);
+		return IntHash.hash32(a, b, IntHash.DEFAULT_SEED);
 	}
 	
 	/**
@@ -42,12 +245,16 @@ public class HashingUtils {
 	 * @return
 	 */
 	public static int[] getBuckets(int[] minHashes, int sizeOfBands){
+		return getBuckets(minHashes, sizeOfBands, DEFAULT_MIXING);
+	}
+	
+	public static int[] getBuckets(int[] minHashes, int sizeOfBands, Mixing mixing){
 		int[] buckets = new int[minHashes.length/sizeOfBands];
 		int counter = 0;
 		int counter2 = 0;
 		int bucket = 0;
 		for(int i : minHashes){
-			bucket = combineIntegers(bucket, i);
+			bucket = combineIntegers(bucket, i, mixing);
 			if(++counter2 == sizeOfBands){
 				buckets[counter++] = bucket;
 				counter2 = 0;
@@ -56,4 +263,4 @@ public class HashingUtils {
 		}
 		return buckets;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+package lsh.strategies;
+
+/**
+ * Allocation-free hash functions for mixing ints and longs, for use on the hot
+ * path where MurmurHash would have to build byte arrays first.
+ * 
+ * hash32/hash64 are MurmurHash3 (x86_32 and a 64-bit variant using the x64_128
+ * mixing steps) specialised to one or two fixed-width words. murmur2 reproduces
+ * MurmurHash.combineIntegers bit-for-bit, for indexes built with the old mixer.
+ * 
+ * @author Greg
+ *
+ */
+public final class IntHash {
+
+	public static final int DEFAULT_SEED = 0x9747b28c;
+	public static final long DEFAULT_SEED_64 = 0xe17a1465L;
+
+	private static final int C1 = 0xcc9e2d51;
+	private static final int C2 = 0x1b873593;
+	private static final long C1_64 = 0x87c37b91114253d5L;
+	private static final long C2_64 = 0x4cf5ad432745937fL;
+
+	// all methods static; private constructor.
+	private IntHash() {}
+
+	/**
+	 * Same value as MurmurHash.combineIntegers(a, b), i.e. MurmurHash2 of the
+	 * eight big-endian bytes of a followed by b, without allocating them.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int murmur2(int a, int b) {
+		final int m = 0x5bd1e995;
+		final int r = 24;
+
+		int h = DEFAULT_SEED ^ 8;
+
+		// hash32 reads little-endian words out of big-endian bytes.
+		int k = Integer.reverseBytes(a);
+		k *= m;
+		k ^= k >>> r;
+		k *= m;
+		h *= m;
+		h ^= k;
+
+		k = Integer.reverseBytes(b);
+		k *= m;
+		k ^= k >>> r;
+		k *= m;
+		h *= m;
+		h ^= k;
+
+		h ^= h >>> 13;
+		h *= m;
+		h ^= h >>> 15;
+		return h;
+	}
+
+	/**
+	 * MurmurHash3 x86_32 of a single int.
+	 */
+	public static int hash32(int a, int seed) {
+		int h = mixH1(seed, mixK1(a));
+		return fmix32(h ^ 4);
+	}
+
+	/**
+	 * MurmurHash3 x86_32 of two ints, in order.
+	 */
+	public static int hash32(int a, int b, int seed) {
+		int h = mixH1(seed, mixK1(a));
+		h = mixH1(h, mixK1(b));
+		return fmix32(h ^ 8);
+	}
+
+	/**
+	 * 64 bit hash of a single long, using the MurmurHash3 x64 mixing steps.
+	 */
+	public static long hash64(long a, long seed) {
+		long h = mixH64(seed, mixK64(a));
+		return fmix64(h ^ 8);
+	}
+
+	/**
+	 * 64 bit hash of two longs, in order, using the MurmurHash3 x64 mixing steps.
+	 */
+	public static long hash64(long a, long b, long seed) {
+		long h = mixH64(seed, mixK64(a));
+		h = mixH64(h, mixK64(b));
+		return fmix64(h ^ 16);
+	}
+
+	/**
+	 * MurmurHash3 32 bit finalizer. Every input bit affects every output bit.
+	 */
+	public static int fmix32(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * MurmurHash3 64 bit finalizer.
+	 */
+	public static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static int mixK1(int k) {
+		k *= C1;
+		k = Integer.rotateLeft(k, 15);
+		k *= C2;
+		return k;
+	}
+
+	private static int mixH1(int h, int k) {
+		h ^= k;
+		h = Integer.rotateLeft(h, 13);
+		return h * 5 + 0xe6546b64;
+	}
+
+	private static long mixK64(long k) {
+		k *= C1_64;
+		k = Long.rotateLeft(k, 31);
+		k *= C2_64;
+		return k;
+	}
+
+	private static long mixH64(long h, long k) {
+		h ^= k;
+		h = Long.rotateLeft(h, 27);
+		return h * 5 + 0x52dce729;
+	}
+}
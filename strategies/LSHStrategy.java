@@ -1,5 +1,8 @@
 package lsh.strategies;
 
+import java.util.Collection;
+import java.util.Random;
+
 import lsh.HashingResult;
 import lsh.LSHable;
 
@@ -23,15 +26,89 @@ public interface LSHStrategy {
 	 */
 	HashingResult hash(LSHable input);
 	
+	/**
+	 * The width of the signatures this strategy produces, a multiple of 64.
+	 * @return
+	 */
+	default int getSignatureBits(){
+		return 64;
+	}
+	
+	/**
+	 * 1, 2 or 4 if the signature is made of b-bit fingerprints of minhashes,
+	 * packed by HashingUtils.getFingerprints. Indexes then read matchThreshold
+	 * as a minimum estimate of Jaccard similarity, in percent, rather than
+	 * the share of signature bits that must agree. 0 for plain signatures.
+	 * @return
+	 */
+	default int getFingerprintBits(){
+		return 0;
+	}
+	
+	/**
+	 * The number of minhashes each input is hashed to, or 0 if the strategy
+	 * doesn't say. Strategies with fingerprints must say, since only that
+	 * many of the fingerprints that fit in a signature are meaningful.
+	 * @return
+	 */
+	default int getNumOfMinHashes(){
+		return 0;
+	}
+	
 	public static class STRATEGIES{
 		
 		public static RandomHashStrategy randomHashStrategy(int numOfMinhashes, int sizeOfBands){
 			return new RandomHashStrategy(numOfMinhashes, sizeOfBands);
 		}
 		
-		/*public static GregsStrategy gregsStrategy(int numOfMinhashes, int sizeOfBands){
-			return new GregsStrategy(numOfMinhashes, sizeOfBands, numOfMinhashes*5);
-		}*/
+		public static RandomHashStrategy randomHashStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing){
+			return new RandomHashStrategy(numOfMinhashes, sizeOfBands, mixing);
+		}
+		
+		/**
+		 * @param signatureBits
+		 *            : 64, 128, 256 or 512. Wider signatures keep more of the
+		 *            minhashes, for a tighter similarity filter.
+		 */
+		public static RandomHashStrategy randomHashStrategy(int numOfMinhashes, int sizeOfBands, int signatureBits){
+			return new RandomHashStrategy(numOfMinhashes, sizeOfBands, HashingUtils.DEFAULT_MIXING, new Random().nextLong(), signatureBits);
+		}
+		
+		/**
+		 * Signatures of b-bit fingerprints: signatureBits / fingerprintBits
+		 * minhashes, searched by estimated Jaccard similarity.
+		 * @param fingerprintBits
+		 *            : 1, 2 or 4. Fewer bits keep more minhashes in the same
+		 *            signature; more bits make each one agree by chance less.
+		 */
+		public static RandomHashStrategy randomHashStrategy(int numOfMinhashes, int sizeOfBands, int signatureBits, int fingerprintBits){
+			return new RandomHashStrategy(numOfMinhashes, sizeOfBands, HashingUtils.DEFAULT_MIXING, new Random().nextLong(), signatureBits, fingerprintBits);
+		}
+		
+		/**
+		 * Hashes each feature once rather than once per minhash; see
+		 * OnePermutationStrategy.
+		 */
+		public static OnePermutationStrategy onePermutationStrategy(int numOfMinhashes, int sizeOfBands){
+			return new OnePermutationStrategy(numOfMinhashes, sizeOfBands);
+		}
+		
+		/**
+		 * Cosine similarity over weighted features; see WeightedLSHable.
+		 * @param numOfBits
+		 *            : numOfBands * sizeOfBands.
+		 */
+		public static SimHashStrategy simHashStrategy(int numOfBits, int sizeOfBands){
+			return new SimHashStrategy(numOfBits, sizeOfBands);
+		}
+		
+		/**
+		 * Trains on the data, picking numOfMinhashes of five times as many
+		 * candidate projections.
+		 */
+		public static GregsStrategy gregsStrategy(int numOfMinhashes, int sizeOfBands, Collection<? extends LSHable> trainingData){
+			return new GregsStrategy(numOfMinhashes, sizeOfBands, numOfMinhashes*5, trainingData);
+		}
 		
 	}
 
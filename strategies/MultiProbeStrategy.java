@@ -0,0 +1,28 @@
+package lsh.strategies;
+
+import lsh.LSHable;
+import lsh.MinHashingResult;
+
+/**
+ * A strategy whose buckets are made by combining bands of minhashes with
+ * HashingUtils.combineIntegers, and which can expose those minhashes. This is
+ * what multi-probe searches need to work out the keys of neighbouring buckets.
+ * @author Greg
+ *
+ */
+public interface MultiProbeStrategy extends LSHStrategy {
+
+	/**
+	 * Hashes an input like hash, also keeping its minhashes, their runner-ups
+	 * and margins. Slower than hash, so only used when probing.
+	 * @param input
+	 * @return
+	 */
+	MinHashingResult hashWithMinHashes(LSHable input);
+
+	/**
+	 * The mixing the bands' minhashes are combined with.
+	 * @return
+	 */
+	HashingUtils.Mixing getMixing();
+}
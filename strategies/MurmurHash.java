@@ -21,12 +21,12 @@ public final class MurmurHash {
     // all methods static; private constructor. 
     private MurmurHash() {}
     
+    /**
+     * Equivalent to hash32 of the big-endian bytes of a followed by b.
+     * Delegates to IntHash.murmur2, which computes it without allocating.
+     */
     public static int combineIntegers(int a, int b){
-		byte[] one = intToByteArray(a);
-		byte[] two = intToByteArray(b);
-		byte[] combined = combineByteArrays(one, two);
-		
-		return MurmurHash.hash32(combined, combined.length);
+		return IntHash.murmur2(a, b);
 	}
 	
 	public static byte[] intToByteArray(int a)
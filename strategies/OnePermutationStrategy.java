@@ -0,0 +1,163 @@
+package lsh.strategies;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import lsh.HashingResult;
+import lsh.LSHable;
+import lsh.impl.HashingResultImpl;
+
+/**
+ * One permutation hashing with optimal densification (Shrivastava, 2017).
+ *
+ * Strategy: hash every feature once with a seeded 64-bit mixer. The high
+ * half of the hash picks one of numOfMinhashes bins and the low half is the
+ * feature's value in it; each bin keeps its smallest value. A bin no
+ * feature fell in borrows the value of another bin, found by hashing the
+ * empty bin's number and an attempt counter until a non-empty bin comes up.
+ * Two inputs then agree on a bin with probability equal to their Jaccard
+ * similarity, as with one minhash per bin, and empty bins don't all copy the
+ * same neighbour, which keeps the variance of the estimate down.
+ *
+ * Hashing costs one hash per feature, plus a few per empty bin, rather than
+ * one comparison per feature per minhash like RandomHashStrategy. Bins only
+ * fill up when inputs have more features than bins, so short inputs hashed
+ * to many bins lean on densification, and their bands are less independent.
+ *
+ * Buckets and signatures are made from the bins' values exactly as
+ * RandomHashStrategy makes them from its minhashes.
+ *
+ * @author Greg
+ *
+ */
+public class OnePermutationStrategy implements LSHStrategy {
+
+	private final int numOfMinhashes;
+	private final int sizeOfBands;
+	private final HashingUtils.Mixing mixing;
+	private final int signatureWords;
+	private final int fingerprintBits;
+	private final long seed;
+	private final int densificationSeed;
+	// per-thread work arrays for hash: each bin's value, and 1 where a bin has one.
+	private final ThreadLocal<int[][]> scratch = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[2][numOfMinhashes];
+		}
+	};
+
+	public OnePermutationStrategy(int numOfMinhashes, int sizeOfBands) {
+		this(numOfMinhashes, sizeOfBands, HashingUtils.DEFAULT_MIXING, new Random().nextLong(), 64);
+	}
+
+	/**
+	 * @param seed
+	 *            : The same seed produces the same strategy in every JVM.
+	 * @param signatureBits
+	 *            : 64, 128, 256 or 512. Each bit comes from one bin.
+	 */
+	public OnePermutationStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing, long seed, int signatureBits) {
+		this(numOfMinhashes, sizeOfBands, mixing, seed, signatureBits, 0);
+	}
+
+	/**
+	 * @param fingerprintBits
+	 *            : 1, 2 or 4 for signatures of b-bit fingerprints of the bins;
+	 *            see HashingUtils.getFingerprints. 0 for plain signatures.
+	 */
+	public OnePermutationStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing, long seed, int signatureBits, int fingerprintBits) {
+		if (signatureBits != 64 && signatureBits != 128 && signatureBits != 256 && signatureBits != 512)
+			throw new IllegalArgumentException("Signatures must be 64, 128, 256 or 512 bits");
+		if (fingerprintBits != 0 && fingerprintBits != 1 && fingerprintBits != 2 && fingerprintBits != 4)
+			throw new IllegalArgumentException("Fingerprints must be 1, 2 or 4 bits");
+		this.numOfMinhashes = numOfMinhashes;
+		this.sizeOfBands = sizeOfBands;
+		this.mixing = mixing;
+		this.signatureWords = signatureBits / 64;
+		this.fingerprintBits = fingerprintBits;
+		this.seed = seed;
+		this.densificationSeed = (int) IntHash.fmix64(seed);
+	}
+
+	@Override
+	public int getNumOfMinHashes() {
+		return numOfMinhashes;
+	}
+
+	public int getSizeOfBands() {
+		return sizeOfBands;
+	}
+
+	public HashingUtils.Mixing getMixing() {
+		return mixing;
+	}
+
+	@Override
+	public int getSignatureBits() {
+		return signatureWords * 64;
+	}
+
+	@Override
+	public int getFingerprintBits() {
+		return fingerprintBits;
+	}
+
+	/**
+	 * The bins are reused by each thread, so only the result is allocated.
+	 */
+	@Override
+	public HashingResult hash(LSHable input) {
+		int[] features = HashingUtils.getInput(input);
+		int[][] arrays = scratch.get();
+		int[] minhashes = arrays[0];
+		int[] filled = arrays[1];
+		Arrays.fill(minhashes, 0);
+		Arrays.fill(filled, 0);
+		int numFilled = 0;
+		for (int feature : features) {
+			long hash = IntHash.hash64(feature, seed);
+			// the high half scaled to [0, numOfMinhashes), without a division.
+			int bin = (int) (((hash >>> 32) * numOfMinhashes) >>> 32);
+			int value = (int) hash;
+			if (filled[bin] == 0) {
+				filled[bin] = 1;
+				minhashes[bin] = value;
+				numFilled++;
+			} else if (value < minhashes[bin]) {
+				minhashes[bin] = value;
+			}
+		}
+		// an input without features keeps all its bins at 0.
+		if (numFilled > 0 && numFilled < numOfMinhashes)
+			densify(minhashes, filled);
+
+		int[] buckets = HashingUtils.getBuckets(minhashes, sizeOfBands, mixing);
+		if (fingerprintBits != 0)
+			return new HashingResultImpl(HashingUtils.getFingerprints(minhashes, fingerprintBits, signatureWords), buckets);
+		if (signatureWords == 1)
+			return new HashingResultImpl(HashingUtils.getSignature(minhashes), buckets);
+		return new HashingResultImpl(HashingUtils.getSignature(minhashes, signatureWords), buckets);
+	}
+
+	/**
+	 * Gives each empty bin the value of the first non-empty bin its probe
+	 * sequence reaches. The sequence depends only on the empty bin's number,
+	 * so two inputs with the same bins filled copy the same ones. Bins filled
+	 * this way are never copied from.
+	 */
+	private void densify(int[] minhashes, int[] filled) {
+		for (int i = 0; i < numOfMinhashes; i++) {
+			if (filled[i] != 0)
+				continue;
+			for (int attempt = 1;; attempt++) {
+				int probe = IntHash.hash32(i, attempt, densificationSeed);
+				int bin = (int) (((probe & 0xFFFFFFFFL) * numOfMinhashes) >>> 32);
+				if (filled[bin] == 1) {
+					minhashes[i] = minhashes[bin];
+					break;
+				}
+			}
+		}
+	}
+}
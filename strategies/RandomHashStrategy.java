@@ -1,75 +1,246 @@
 package lsh.strategies;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import lsh.HashingResult;
 import lsh.LSHable;
+import lsh.MinHashingResult;
 import lsh.impl.HashingResultImpl;
+import lsh.impl.MinHashingResultImpl;
 
-public class RandomHashStrategy implements LSHStrategy{
+public class RandomHashStrategy implements MultiProbeStrategy{
 
 	
 	int[] randomIntegers;
 	private final int numOfMinhashes;
 	private final int sizeOfBands;
+	private final HashingUtils.Mixing mixing;
+	private final int signatureWords;
+	private final int fingerprintBits;
+	// per-thread work arrays for select, one per minhash, indexed by the constants below.
+	private final ThreadLocal<int[][]> scratch = new ThreadLocal<int[][]>(){
+		@Override
+		protected int[][] initialValue(){
+			return new int[5][numOfMinhashes];
+		}
+	};
+	private static final int MINHASHES = 0;
+	private static final int MOST_DIGITS_DIFFERENT = 1;
+	private static final int CLOSEST_DISTANCE = 2;
+	private static final int RUNNER_UPS = 3;
+	private static final int RUNNER_UP_DIGITS_DIFFERENT = 4;
 	
 	public RandomHashStrategy(int numOfMinhashes, int sizeOfBands){
+		this(numOfMinhashes, sizeOfBands, HashingUtils.DEFAULT_MIXING);
+	}
+	
+	/**
+	 * @param mixing
+	 *            : How minhashes are combined into buckets. Use LEGACY to
+	 *            reproduce buckets from before the MurmurHash3 mixer.
+	 */
+	public RandomHashStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing){
+		this(randomIntegers(numOfMinhashes, new Random()), sizeOfBands, mixing);
+	}
+	
+	/**
+	 * Seeded, so that the same seed produces the same strategy in every JVM.
+	 */
+	public RandomHashStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing, long seed){
+		this(numOfMinhashes, sizeOfBands, mixing, seed, 64);
+	}
+	
+	/**
+	 * @param signatureBits
+	 *            : 64, 128, 256 or 512. Each bit comes from one minhash, so
+	 *            there is no point going wider than numOfMinhashes.
+	 */
+	public RandomHashStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing, long seed, int signatureBits){
+		this(numOfMinhashes, sizeOfBands, mixing, seed, signatureBits, 0);
+	}
+	
+	/**
+	 * @param fingerprintBits
+	 *            : 1, 2 or 4 for signatures of b-bit fingerprints, each
+	 *            made from one minhash; see HashingUtils.getFingerprints. 0
+	 *            for plain signatures.
+	 */
+	public RandomHashStrategy(int numOfMinhashes, int sizeOfBands, HashingUtils.Mixing mixing, long seed, int signatureBits, int fingerprintBits){
+		this(randomIntegers(numOfMinhashes, new Random(seed)), sizeOfBands, mixing, signatureBits, fingerprintBits);
+	}
+	
+	/**
+	 * Recreates a strategy from its random integers, e.g. when loading a snapshot.
+	 */
+	public RandomHashStrategy(int[] randomIntegers, int sizeOfBands, HashingUtils.Mixing mixing){
+		this(randomIntegers, sizeOfBands, mixing, 64);
+	}
+	
+	public RandomHashStrategy(int[] randomIntegers, int sizeOfBands, HashingUtils.Mixing mixing, int signatureBits){
+		this(randomIntegers, sizeOfBands, mixing, signatureBits, 0);
+	}
+	
+	public RandomHashStrategy(int[] randomIntegers, int sizeOfBands, HashingUtils.Mixing mixing, int signatureBits, int fingerprintBits){
+		if(signatureBits != 64 && signatureBits != 128 && signatureBits != 256 && signatureBits != 512)
+			throw new IllegalArgumentException("Signatures must be 64, 128, 256 or 512 bits");
+		if(fingerprintBits != 0 && fingerprintBits != 1 && fingerprintBits != 2 && fingerprintBits != 4)
+			throw new IllegalArgumentException("Fingerprints must be 1, 2 or 4 bits");
+		this.numOfMinhashes = randomIntegers.length;
+		this.sizeOfBands = sizeOfBands;
+		this.randomIntegers = randomIntegers.clone();
+		this.mixing = mixing;
+		this.signatureWords = signatureBits/64;
+		this.fingerprintBits = fingerprintBits;
+	}
+	
+	private static int[] randomIntegers(int numOfMinhashes, Random r){
 		int[] rand = new int[numOfMinhashes];
-		Random r = new Random();
 		for(int i = 0; i< numOfMinhashes; i++){
 			rand[i] = r.nextInt();
 		}
-		this.numOfMinhashes = numOfMinhashes;
-		this.sizeOfBands = sizeOfBands;
-		this.randomIntegers = rand;
+		return rand;
 	}
 	
+	public int[] getRandomIntegers(){
+		return randomIntegers.clone();
+	}
+	
+	@Override
+	public int getNumOfMinHashes(){
+		return numOfMinhashes;
+	}
+	
+	public int getSizeOfBands(){
+		return sizeOfBands;
+	}
+	
+	@Override
+	public HashingUtils.Mixing getMixing(){
+		return mixing;
+	}
+	
+	@Override
+	public int getSignatureBits(){
+		return signatureWords*64;
+	}
+	
+	@Override
+	public int getFingerprintBits(){
+		return fingerprintBits;
+	}
 	
 	@Override
 	/**
 	 * Strategy: compare each input with a set of randomly generated integers.
 	 * The input that matches most closely with each random integer are selected.
+	 * 
+	 * The input is streamed once; each feature updates every minhash slot from
+	 * flat arrays holding the best bitcount and tie-breaking distance so far.
+	 * This picks exactly the same minhashes as scanning the input once per random
+	 * integer, including which of several equally good features wins. The arrays
+	 * are reused by each thread, so only the result is allocated.
 	 */
 	public HashingResult hash(LSHable input) {
-		Iterable<Integer> itr = input.getInput();
-		int[] minhashes = new int[numOfMinhashes];
-		int counter = 0;
+		int[] minhashes = select(HashingUtils.getInput(input), false)[MINHASHES];
+		int[] buckets = HashingUtils.getBuckets(minhashes, sizeOfBands, mixing);
+		if(fingerprintBits != 0)
+			return new HashingResultImpl(HashingUtils.getFingerprints(minhashes, fingerprintBits, signatureWords), buckets);
+		if(signatureWords == 1)
+			return new HashingResultImpl(HashingUtils.getSignature(minhashes), buckets);
+		return new HashingResultImpl(HashingUtils.getSignature(minhashes, signatureWords), buckets);
+	}		
+	
+	/**
+	 * Picks the same minhashes as hash, and also keeps each one's runner-up: the
+	 * feature with the fewest differing bits among those that lost to it. The
+	 * margin is the runner-up's bitcount minus the minhash's, 0 when the
+	 * minhash only won the tie-break.
+	 */
+	@Override
+	public MinHashingResult hashWithMinHashes(LSHable input) {
+		int[][] arrays = select(HashingUtils.getInput(input), true);
+		int[] minhashes = arrays[MINHASHES].clone();
+		int[] runnerUps = arrays[RUNNER_UPS].clone();
+		int[] mostDigitsDifferent = arrays[MOST_DIGITS_DIFFERENT];
+		int[] runnerUpDigitsDifferent = arrays[RUNNER_UP_DIGITS_DIFFERENT];
+		int[] margins = new int[numOfMinhashes];
+		for(int j = 0; j < numOfMinhashes; j++){
+			margins[j] = runnerUpDigitsDifferent[j] == 64 ? -1 : runnerUpDigitsDifferent[j] - mostDigitsDifferent[j];
+		}
+		int[] buckets = HashingUtils.getBuckets(minhashes, sizeOfBands, mixing);
+		long[] signature = fingerprintBits != 0 ? HashingUtils.getFingerprints(minhashes, fingerprintBits, signatureWords) : HashingUtils.getSignature(minhashes, signatureWords);
+		return new MinHashingResultImpl(signature, buckets, minhashes, runnerUps, margins, sizeOfBands);
+	}
+	
+	/**
+	 * Selects the minhashes of some features into this thread's scratch
+	 * arrays, which are returned, and which the next call overwrites. Both
+	 * hash and hashWithMinHashes go through here, so their minhashes, and the
+	 * buckets multi-probe searches work out from them, always agree.
+	 * @param trackRunnerUps
+	 *            : Whether to also keep each minhash's runner-up and its
+	 *            bitcount. Otherwise those arrays are left as they were.
+	 */
+	private int[][] select(int[] features, boolean trackRunnerUps){
+		final int[] randomIntegers = this.randomIntegers;
+		final int numOfMinhashes = this.numOfMinhashes;
 		
-		for(int r : randomIntegers){
-			int closestDistance = Integer.MAX_VALUE;
-			int bestValue = 0;
-			int mostDigitsDifferent = 64;		
+		int[][] arrays = scratch.get();
+		int[] minhashes = arrays[MINHASHES];
+		int[] mostDigitsDifferent = arrays[MOST_DIGITS_DIFFERENT];
+		int[] closestDistance = arrays[CLOSEST_DISTANCE];
+		int[] runnerUps = arrays[RUNNER_UPS];
+		int[] runnerUpDigitsDifferent = arrays[RUNNER_UP_DIGITS_DIFFERENT];
+		Arrays.fill(minhashes, 0);
+		Arrays.fill(mostDigitsDifferent, 64);
+		Arrays.fill(closestDistance, Integer.MAX_VALUE);
+		if(trackRunnerUps){
+			Arrays.fill(runnerUps, 0);
+			// more than any bitcount of an int, so the first feature never becomes a runner-up.
+			Arrays.fill(runnerUpDigitsDifferent, 64);
+		}
+		
+		for(int i : features){
+			/*
+			 * a large prime number. Helps scatter clustered values. This especially
+			 * helps with groups of small numbers, which would otherwise generate similar xor values,
+			 * and therefore have a disproportionately small chance of being selected.
+			 * 
+			 */
+			int val = i*1293843569; 
 			
-			for(int i : itr){
-				/*
-				 * a large prime number. Helps scatter clustered values. This especially
-				 * helps with groups of small numbers, which would otherwise generate similar xor values,
-				 * and therefore have a disproportionately small chance of being selected.
-				 * 
-				 */
-				int val = i*1293843569; 
-				int xor = r^val;
-				
+			for(int j = 0; j < numOfMinhashes; j++){
+				int r = randomIntegers[j];
 				/*
 				 * Experimentally, bitcount works better than minimum value for choosing minhashes.
 				 * In the case of a tie, we revert to answer closest to our random int.
+				 * Note the closest distance is deliberately not reset when a better bitcount
+				 * is found; existing indexes depend on this tie-breaking behaviour.
 				 */
-				int differences = Integer.bitCount(xor);
-				if(differences <= mostDigitsDifferent){
+				int differences = Integer.bitCount(r^val);
+				// the feature that loses this comparison, and its bitcount.
+				int loser = i;
+				int loserDifferences = differences;
+				if(differences < mostDigitsDifferent[j]){
+					loser = minhashes[j];
+					loserDifferences = mostDigitsDifferent[j];
+					mostDigitsDifferent[j] = differences;
+					minhashes[j] = i;
+				}else if(differences == mostDigitsDifferent[j]){
 					int distance = Math.abs(i - r);
-					if(differences == mostDigitsDifferent){						
-						if(distance < closestDistance){
-							closestDistance = distance;
-							bestValue = i;
-						}
-					}else{ //differences < mostDigitsDifferent
-						mostDigitsDifferent = differences;
-						bestValue = i;
+					if(distance < closestDistance[j]){
+						loser = minhashes[j];
+						closestDistance[j] = distance;
+						minhashes[j] = i;
 					}
 				}
+				if(trackRunnerUps && loserDifferences < runnerUpDigitsDifferent[j] && loser != minhashes[j]){
+					runnerUpDigitsDifferent[j] = loserDifferences;
+					runnerUps[j] = loser;
+				}
 			}
-			minhashes[counter++] = bestValue;
 		}
-		return new HashingResultImpl(HashingUtils.getSignature(minhashes), HashingUtils.getBuckets(minhashes, sizeOfBands));
-	}		
+		return arrays;
+	}
 }
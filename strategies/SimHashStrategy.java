@@ -0,0 +1,165 @@
+package lsh.strategies;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import lsh.HashingResult;
+import lsh.LSHable;
+import lsh.WeightedLSHable;
+import lsh.impl.HashingResultImpl;
+
+/**
+ * Random-projection LSH (SimHash) for cosine similarity.
+ *
+ * Strategy: each feature is hashed to a random +1/-1 for every bit, 64 bits
+ * per 64-bit hash. Every bit's score adds up the signs of the input's
+ * features, times their weights for a WeightedLSHable, or once per
+ * occurrence otherwise. Bits whose score is above 0 are 1. Two inputs agree
+ * on a bit with probability 1 - angle/pi, where angle is the angle between
+ * their weighted feature vectors.
+ *
+ * Bands are made of sizeOfBands bits each and keyed by their band as well,
+ * so the same bits in two bands don't share a bucket. The signature holds
+ * the first bits, bit-packed the way HashingUtils.getSignature packs
+ * minhashes. A search's matchThreshold is the share of signature bits that
+ * must agree, so a threshold of t finds items at cosine similarity
+ * cos(pi * (1 - t/100)) and above: 90 is about 0.95, 80 about 0.81.
+ *
+ * The input is streamed once, accumulating into a score vector kept per
+ * thread, so hashing costs one 64-bit hash per 64 bits per feature and only
+ * the result is allocated.
+ *
+ * @author Greg
+ *
+ */
+public class SimHashStrategy implements LSHStrategy {
+
+	// the signs each byte of a hash gives its 8 bits, high bit first: entry 8b + i is bit 7 - i of b.
+	private static final float[] SIGNS = new float[256 * 8];
+	static {
+		for (int b = 0; b < 256; b++) {
+			for (int i = 0; i < 8; i++) {
+				SIGNS[b * 8 + i] = (b << i & 0x80) != 0 ? 1 : -1;
+			}
+		}
+	}
+
+	private final int numOfBits;
+	private final int sizeOfBands;
+	private final int signatureWords;
+	// one seed per 64 bits hashed.
+	private final long[] blockSeeds;
+	private final ThreadLocal<float[]> scratch = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[blockSeeds.length * 64];
+		}
+	};
+
+	public SimHashStrategy(int numOfBits, int sizeOfBands) {
+		this(numOfBits, sizeOfBands, new Random().nextLong(), 64);
+	}
+
+	/**
+	 * @param numOfBits
+	 *            : The bits banded into buckets, numOfBands * sizeOfBands.
+	 * @param sizeOfBands
+	 *            : At most 32.
+	 * @param seed
+	 *            : The same seed produces the same strategy in every JVM.
+	 * @param signatureBits
+	 *            : 64, 128, 256 or 512. Bits beyond numOfBits are computed
+	 *            for the signature only.
+	 */
+	public SimHashStrategy(int numOfBits, int sizeOfBands, long seed, int signatureBits) {
+		if (signatureBits != 64 && signatureBits != 128 && signatureBits != 256 && signatureBits != 512)
+			throw new IllegalArgumentException("Signatures must be 64, 128, 256 or 512 bits");
+		if (sizeOfBands < 1 || sizeOfBands > 32)
+			throw new IllegalArgumentException("Bands must have 1 to 32 bits");
+		this.numOfBits = numOfBits;
+		this.sizeOfBands = sizeOfBands;
+		this.signatureWords = signatureBits / 64;
+		Random random = new Random(seed);
+		this.blockSeeds = new long[(Math.max(numOfBits, signatureBits) + 63) / 64];
+		for (int i = 0; i < blockSeeds.length; i++) {
+			blockSeeds[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Every bit is hashed like a minhash, and bits beyond numOfBits are still
+	 * computed to fill the signature.
+	 */
+	@Override
+	public int getNumOfMinHashes() {
+		return Math.max(numOfBits, signatureWords * 64);
+	}
+
+	public int getSizeOfBands() {
+		return sizeOfBands;
+	}
+
+	@Override
+	public int getSignatureBits() {
+		return signatureWords * 64;
+	}
+
+	@Override
+	public HashingResult hash(LSHable input) {
+		int[] features = HashingUtils.getInput(input);
+		float[] scores = scratch.get();
+		Arrays.fill(scores, 0);
+		if (input instanceof WeightedLSHable) {
+			float[] weights = ((WeightedLSHable) input).getWeights();
+			if (weights.length != features.length)
+				throw new IllegalArgumentException(features.length + " features but " + weights.length + " weights");
+			for (int i = 0; i < features.length; i++) {
+				accumulate(scores, features[i], weights[i]);
+			}
+		} else {
+			for (int feature : features) {
+				accumulate(scores, feature, 1);
+			}
+		}
+
+		int[] buckets = new int[numOfBits / sizeOfBands];
+		for (int band = 0; band < buckets.length; band++) {
+			int bits = 0;
+			for (int i = band * sizeOfBands; i < (band + 1) * sizeOfBands; i++) {
+				bits = (bits << 1) | (scores[i] > 0 ? 1 : 0);
+			}
+			buckets[band] = HashingUtils.combineIntegers(band, bits);
+		}
+		long[] signature = new long[signatureWords];
+		for (int word = 0; word < signatureWords; word++) {
+			long bits = 0;
+			for (int i = word * 64; i < (word + 1) * 64; i++) {
+				bits = (bits << 1) | (scores[i] > 0 ? 1 : 0);
+			}
+			signature[word] = bits;
+		}
+		if (signatureWords == 1)
+			return new HashingResultImpl(signature[0], buckets);
+		return new HashingResultImpl(signature, buckets);
+	}
+
+	/**
+	 * Adds a feature's weight to the bits its hashes set and subtracts it from
+	 * the rest. Bit i of a block is bit 63 - i of its hash, so a lone
+	 * feature's signature is its hash. Signs are looked up a byte at a time
+	 * rather than branched on, as the branches can't be predicted.
+	 */
+	private void accumulate(float[] scores, int feature, float weight) {
+		for (int block = 0; block < blockSeeds.length; block++) {
+			long hash = IntHash.hash64(feature, blockSeeds[block]);
+			int base = block << 6;
+			for (int b = 0; b < 8; b++) {
+				int signs = ((int) (hash >>> (56 - 8 * b)) & 0xFF) << 3;
+				int start = base + 8 * b;
+				for (int i = 0; i < 8; i++) {
+					scores[start + i] += weight * SIGNS[signs + i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package lsh.test;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import lsh.LSHable;
+import lsh.impl.LSHImpl;
+import lsh.strategies.HashingUtils;
+import lsh.strategies.LSHStrategy;
+import lsh.strategies.RandomHashStrategy;
+import lsh.test.Test.Device;
+import lsh.test.Test.DeviceGenerator;
+
+/**
+ * Compares signatures of b-bit fingerprints of different widths on the Test
+ * devices. For each layout, prints the estimated Jaccard similarity between
+ * devices and their changed copies, whose true similarity is about 0.74,
+ * and between unrelated devices, then how many originals a search at that
+ * estimate finds. Narrower fingerprints fit more minhashes into the same
+ * signature; wider ones agree by chance less often.
+ * @author Greg
+ *
+ */
+public class Fingerprints {
+
+	public static void main(String[] args) {
+
+		int numDevices = 50000;
+		int numOfAtts = 100;
+		int numToChange = 15;
+		int numOfBands = 20;
+		int sizeOfBands = 6;
+		//Estimated Jaccard similarity, in percent, that results must reach.
+		int searchThreshold = 50;
+		//Pairs the estimates are averaged over.
+		int numOfPairs = 5000;
+		//Signature bits and bits per fingerprint for each layout.
+		int[][] layouts = { { 64, 1 }, { 64, 2 }, { 128, 1 }, { 128, 2 }, { 256, 4 } };
+
+		DeviceGenerator gen = new DeviceGenerator(numOfAtts);
+		Device[] devices = new Device[numDevices];
+		Device[] changed = new Device[numDevices];
+		for (int i = 0; i < numDevices; i++) {
+			devices[i] = gen.getRandomDevice();
+			changed[i] = new Device(devices[i].getPrimitiveInput().clone());
+			changed[i].changeProps(numToChange, gen);
+		}
+
+		NumberFormat formatter = new DecimalFormat("#0.000");
+		int numOfMinHashes = numOfBands * sizeOfBands;
+		for (int[] layout : layouts) {
+			int signatureBits = layout[0];
+			int fingerprintBits = layout[1];
+			int numOfFingerprints = Math.min(signatureBits / fingerprintBits, numOfMinHashes);
+			RandomHashStrategy strategy = LSHStrategy.STRATEGIES.randomHashStrategy(numOfMinHashes, sizeOfBands, signatureBits, fingerprintBits);
+
+			double[] similar = new double[numOfPairs];
+			double[] unrelated = new double[numOfPairs];
+			for (int i = 0; i < numOfPairs; i++) {
+				long[] signature = strategy.hash(devices[i]).getSignatureWords();
+				long[] other = strategy.hash(changed[i]).getSignatureWords();
+				long[] unrelatedSignature = strategy.hash(devices[numDevices - 1 - i]).getSignatureWords();
+				similar[i] = HashingUtils.estimateJaccard(HashingUtils.fingerprintDistance(signature, 0, other, fingerprintBits), numOfFingerprints, fingerprintBits);
+				unrelated[i] = HashingUtils.estimateJaccard(HashingUtils.fingerprintDistance(signature, 0, unrelatedSignature, fingerprintBits), numOfFingerprints, fingerprintBits);
+			}
+
+			LSHImpl lsh = new LSHImpl(numOfMinHashes, sizeOfBands, strategy);
+			lsh.addAll(Arrays.asList(devices));
+			List<Collection<LSHable>> results = lsh.searchAll(Arrays.asList(changed), searchThreshold);
+			int successes = 0;
+			for (int i = 0; i < numDevices; i++) {
+				if (results.get(i).contains(devices[i]))
+					successes++;
+			}
+
+			System.out.println(signatureBits + " bits of " + fingerprintBits + "-bit fingerprints (" + numOfFingerprints + " minhashes)"
+					+ "\n  changed copies: " + formatter.format(mean(similar)) + " +/- " + formatter.format(deviation(similar))
+					+ "\n  unrelated:      " + formatter.format(mean(unrelated)) + " +/- " + formatter.format(deviation(unrelated))
+					+ "\n  found:          " + formatter.format(successes / (double) numDevices)
+					+ "\n  bytes/item:     " + lsh.memoryUsage() / numDevices);
+		}
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+
+	private static double deviation(double[] values) {
+		double mean = mean(values);
+		double sum = 0;
+		for (double value : values) {
+			sum += (value - mean) * (value - mean);
+		}
+		return Math.sqrt(sum / values.length);
+	}
+}
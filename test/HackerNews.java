@@ -1,42 +1,115 @@
 package lsh.test;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import lsh.LSHable;
+import lsh.PrimitiveLSHable;
+import lsh.impl.LSHImpl;
+import lsh.ingest.IngestPipeline;
+import lsh.ingest.JsonField;
+import lsh.ingest.LineParser;
+import lsh.shingles.Shingler;
+import lsh.shingles.StopShingleFilter;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * Bulk loads a dump of HackerNews comments, one JSON object per line, with
+ * an IngestPipeline, printing each stage's throughput as it goes.
+ *
+ * Arguments: the file (default 10m_hn_comments_sorted.json) and the field
+ * holding the comment's text (default text).
+ * @author Greg
+ *
+ */
 public class HackerNews {
 
 	public static void main(String[] args) throws Exception {
-		
-		
-		FileInputStream inputStream = null;
-		Scanner sc = null;
-		try {
-		    inputStream = new FileInputStream("10m_hn_comments_sorted.json");
-		    sc = new Scanner(inputStream, "UTF-8");
-		    while (sc.hasNextLine()) {
-		        String line = sc.nextLine();
-		         System.out.println(line);
-		    }
-		    // note that Scanner suppresses exceptions
-		    if (sc.ioException() != null) {
-		        throw sc.ioException();
-		    }
-		} finally {
-		    if (inputStream != null) {
-		        inputStream.close();
-		    }
-		    if (sc != null) {
-		        sc.close();
-		    }
+
+		String fileName = args.length > 0 ? args[0] : "10m_hn_comments_sorted.json";
+		final String field = args.length > 1 ? args[1] : "text";
+
+		//Number of hashes to store per comment.
+		int numOfBands = 20;
+		//Number of minhashes to join together per band.
+		int sizeOfBands = 5;
+		//Seconds between progress reports.
+		int reportInterval = 5;
+		//Drop word pairs once they've been seen this many times, as they are parsed.
+		final StopShingleFilter stopShingles = new StopShingleFilter(50000);
+
+		LSHImpl lsh = new LSHImpl(numOfBands*sizeOfBands, sizeOfBands, LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands*sizeOfBands, sizeOfBands));
+		final IngestPipeline pipeline = new IngestPipeline(lsh, () -> new CommentParser(field, stopShingles));
+
+		Thread progress = new Thread(() -> {
+			try {
+				while(true){
+					Thread.sleep(reportInterval * 1000L);
+					System.out.println(pipeline.report());
+				}
+			} catch (InterruptedException e) {
+				// done
+			}
+		});
+		progress.setDaemon(true);
+		progress.start();
+
+		long added = pipeline.run(new File(fileName));
+		progress.interrupt();
+
+		System.gc();
+		long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		System.out.println(pipeline.report()
+		+"\nAdded: " + added
+		+"\nShingles Dropped: " + stopShingles.getDropped() + " of " + stopShingles.getSeen()
+		+"\nLoad Time: " + pipeline.getElapsedNanos()/1000000
+		+"\nIndex Memory: " + (lsh.memoryUsage()/1000000) + "MB"
+		+"\nHeap: " + (heap/1000000) + "MB"
+		+"\nTotal Buckets: " + lsh.getTotalBuckets());
+	}
+
+	/**
+	 * Hashes a comment's words in pairs, like Newsgroups, straight from the
+	 * decoded text, and drops the most common pairs. The parsers share one
+	 * StopShingleFilter.
+	 */
+	static class CommentParser implements LineParser {
+
+		private final JsonField text;
+		private final Shingler shingler = new Shingler(Shingler.Unit.WORDS, 2);
+		private final StopShingleFilter stopShingles;
+
+		CommentParser(String field, StopShingleFilter stopShingles) {
+			this.text = new JsonField(field);
+			this.stopShingles = stopShingles;
+		}
+
+		@Override
+		public LSHable parse(ByteBuffer line) {
+			CharSequence comment = text.extract(line);
+			if(comment == null)
+				return null;
+			// shingle first: it may grow the array hashes() returns.
+			int numOfShingles = shingler.shingle(comment);
+			int kept = stopShingles.filter(shingler.hashes(), numOfShingles);
+			if(kept == 0)
+				return null;
+			return new Comment(Arrays.copyOf(shingler.hashes(), kept));
+		}
+	}
+
+	static class Comment implements PrimitiveLSHable {
+
+		private final int[] shingles;
+
+		Comment(int[] shingles) {
+			this.shingles = shingles;
+		}
+
+		@Override
+		public int[] getPrimitiveInput() {
+			return shingles;
 		}
-		
-		File file = new File("10m_hn_comments_sorted.json");
-		
-		
-		
 	}
-	
 }
@@ -0,0 +1,52 @@
+package lsh.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import lsh.PrimitiveLSHable;
+import lsh.shingles.Shingler;
+import lsh.shingles.StopShingleFilter;
+
+/**
+ * Checks that Newsgroups and HackerNews keep every shingle of documents
+ * with more shingles than a Shingler starts with room for, which makes it
+ * grow its array mid-document. Throws if either loses or misreads any.
+ * @author Greg
+ *
+ */
+public class LongDocuments {
+
+	public static void main(String[] args) {
+
+		//Words per document; word pairs are shingled, so one fewer shingles.
+		int numOfWords = 200;
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < numOfWords; i++) {
+			text.append(i == 0 ? "" : " ").append("word").append(i);
+		}
+		Shingler expected = new Shingler(Shingler.Unit.WORDS, 2);
+		int numOfShingles = expected.shingle(text);
+
+		// high enough that nothing is dropped.
+		StopShingleFilter stopShingles = new StopShingleFilter(Integer.MAX_VALUE);
+		Newsgroups.NewsDoc doc = new Newsgroups.NewsDoc("test", text.toString(), new Shingler(Shingler.Unit.WORDS, 2), stopShingles);
+		check("Newsgroups", expected, numOfShingles, doc);
+
+		byte[] line = ("{\"text\":\"" + text + "\"}").getBytes(StandardCharsets.UTF_8);
+		HackerNews.CommentParser parser = new HackerNews.CommentParser("text", stopShingles);
+		check("HackerNews", expected, numOfShingles, (PrimitiveLSHable) parser.parse(ByteBuffer.wrap(line)));
+
+		System.out.println(numOfWords + " words: " + numOfShingles + " shingles kept by Newsgroups and HackerNews");
+	}
+
+	private static void check(String name, Shingler expected, int numOfShingles, PrimitiveLSHable parsed) {
+		int[] shingles = parsed.getPrimitiveInput();
+		if (shingles.length != numOfShingles)
+			throw new IllegalStateException(name + " kept " + shingles.length + " of " + numOfShingles + " shingles");
+		for (int i = 0; i < numOfShingles; i++) {
+			if (shingles[i] != expected.hashes()[i])
+				throw new IllegalStateException(name + " misread shingle " + i);
+		}
+	}
+}
@@ -6,16 +6,19 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import lsh.LSHable;
+import lsh.PrimitiveLSHable;
 import lsh.impl.LSHImpl;
+import lsh.shingles.Shingler;
+import lsh.shingles.StopShingleFilter;
 import lsh.strategies.LSHStrategy;
 
 public class Newsgroups {
@@ -31,6 +34,10 @@ public class Newsgroups {
 		int numOfBands = 40;
 		//Number of minhashes to join together per band. More minhashes yields greater precision but less recall.
 		int sizeOfBands = 3;
+		//Use addAll/searchAll, which hash and search on all cores, instead of one call per document.
+		boolean useBatchApi = true;
+		//Extra buckets to search per document (multi-probe). Probing lets fewer bands reach the same recall.
+		int numOfProbes = 0;
 		
 		//best: 90/13. Yields 99% accuracy, 350 search time		
 		int successes = 0;
@@ -45,6 +52,10 @@ public class Newsgroups {
 		LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands*sizeOfBands, sizeOfBands));	
 		
 		List<NewsDoc> docs = new ArrayList<NewsDoc>();
+		//Word pairs, hashed as they are read.
+		Shingler shingler = new Shingler(Shingler.Unit.WORDS, 2);
+		//Drop word pairs once they've been seen this many times; they're too common to tell documents apart.
+		StopShingleFilter stopShingles = new StopShingleFilter(2000);
 		
 		Map<String, List<File>> documents = getDocuments("20news-18828");
 		
@@ -52,63 +63,27 @@ public class Newsgroups {
 			List<File> l = documents.get(key);
 			for(File doc : l){
 				String str = readFile(doc);
-				NewsDoc news = new NewsDoc(key, str);
+				NewsDoc news = new NewsDoc(key, str, shingler, stopShingles);
 				docs.add(news);
 			}
 		}
 		
-		/*
-		 * Remove common word pairs
-		 */
-		
-		//todo: learn scala or java8 so you don't have to do this bullshit
-		
-		Map<String, AtomicInteger> wordCount = new HashMap<String, AtomicInteger>();
-		for(NewsDoc doc : docs){
-			for(String pair : doc.tuples){
-				AtomicInteger i = wordCount.get(pair);
-				if(i == null){
-					i = new AtomicInteger(0);
-					wordCount.put(pair,  i);
-				}
-				i.incrementAndGet();
-			}
-		}
-		
-		Collection<AtomicInteger> coll = wordCount.values();
-		
-		ArrayList<AtomicInteger> al = new ArrayList<AtomicInteger>(coll);
-	
-	
-		al.sort((AtomicInteger arg0, AtomicInteger arg1) -> {
-			if(arg0.get() == arg1.get())
-				return 0;
-			return arg0.get() < arg1.get() ? -1 : 1;
-		});
-		
-		
-		for(NewsDoc doc : docs){
-			Object[] array = doc.tuples.toArray();
-			for(Object tuple : array){
-				String str = (String)tuple;
-				if(wordCount.get(str).get() > 2000){
-					doc.tuples.remove(str);
-				}					
-			}
-		}
-		
 		/*
 		 * Add to lsh
 		 */
 		
-		wordCount  = null;
 		System.gc();
 		long initialMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 		
 		long t = System.currentTimeMillis();
-		for(NewsDoc doc : docs){
-			lsh.add(doc);
-			numFiles++;
+		if(useBatchApi){
+			lsh.addAll(docs);
+			numFiles = docs.size();
+		}else{
+			for(NewsDoc doc : docs){
+				lsh.add(doc);
+				numFiles++;
+			}
 		}
 		insertionTime = System.currentTimeMillis() - t;
 		t = System.currentTimeMillis();
@@ -118,8 +93,12 @@ public class Newsgroups {
 		memoryRequired =  currentMemory - initialMemory;
 		System.out.println("Memory required: " + (memoryRequired/1000000) +"MB");
 		
-		for(NewsDoc doc : docs){
-			Collection<LSHable> similar = lsh.search(doc, searchThreshold);
+		List<Collection<LSHable>> allSimilar = null;
+		if(useBatchApi)
+			allSimilar = lsh.searchAll(docs, searchThreshold, numOfProbes);
+		for(int i = 0; i < docs.size(); i++){
+			NewsDoc doc = docs.get(i);
+			Collection<LSHable> similar = useBatchApi ? allSimilar.get(i) : lsh.search(doc, searchThreshold, numOfProbes);
 			for(LSHable l : similar){
 				NewsDoc news = (NewsDoc)l;
 				if(news == doc)
@@ -133,6 +112,7 @@ public class Newsgroups {
 		}
 		
 		searchTime = System.currentTimeMillis() - t;
+		long allocationPerSearch = Test.allocationPerSearch(lsh, docs.toArray(new LSHable[docs.size()]), searchThreshold, 2000);
 		
 		NumberFormat formatter = new DecimalFormat("#0.0"); 
 		
@@ -143,6 +123,7 @@ public class Newsgroups {
 		+"\nMemory: " + (memoryRequired/1000000) +"MB"
 		+"\nInsertion Time: " + insertionTime
 		+"\nSearch Time: " + searchTime
+		+"\nAllocation Per Search: " + (allocationPerSearch < 0 ? "n/a" : allocationPerSearch + " bytes")
 		+"\nTotal Buckets: " + lsh.getTotalBuckets()
 		+"\nCollision Rate: " + formatter.format(100*(1 - lsh.getTotalBuckets()/(double)(numFiles*(numOfBands)))) + "%");
 
@@ -194,40 +175,27 @@ public class Newsgroups {
 	    return content;
 	}
 	
-	public static class NewsDoc implements LSHable{
+	public static class NewsDoc implements PrimitiveLSHable{
 		
-		private final String input;
-		public final List<String> tuples = new ArrayList<String>();
 		final String category;
+		private final int[] shingles;
 		
 		
-		public NewsDoc(String category, String input){
+		public NewsDoc(String category, String input, Shingler shingler, StopShingleFilter stopShingles){
 			this.category = category;
-			this.input = input;
 			/*int index = input.indexOf("writes:");
 			if(index == -1)
 				throw new RuntimeException("Document doesn't have a writes line");
 			String body = input.substring(index + 7);*/
-			String[] words = input.split("\\s");
-			
-			String lastWord = "";
-			for(String word : words){
-				tuples.add(lastWord + " " + word);
-				lastWord = word;
-			}			
-		}
-		
-		private List<Integer> getTuplesAsIntegers(){
-			List<Integer> toReturn = new ArrayList<Integer>();
-			for(String str : tuples){
-				toReturn.add(str.hashCode());
-			}
-			return toReturn;
+			// shingle first: it may grow the array hashes() returns.
+			int numOfShingles = shingler.shingle(input);
+			int kept = stopShingles.filter(shingler.hashes(), numOfShingles);
+			this.shingles = Arrays.copyOf(shingler.hashes(), kept);
 		}
 
 		@Override
-		public Iterable<Integer> getInput() {
-			return getTuplesAsIntegers();
+		public int[] getPrimitiveInput() {
+			return shingles;
 		}
 	}
 	
@@ -0,0 +1,154 @@
+package lsh.test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import lsh.LSHable;
+import lsh.PrimitiveLSHable;
+import lsh.impl.ItemSerializer;
+import lsh.impl.LSHImpl;
+import lsh.server.LSHClient;
+import lsh.server.LSHServer;
+import lsh.strategies.LSHStrategy;
+import lsh.test.Test.Device;
+import lsh.test.Test.DeviceGenerator;
+
+/**
+ * Runs the device demo from Test through an LSHServer on the loopback
+ * interface, to show the client finds the same devices as a local index
+ * and how much the network costs. Devices are added with addAll, then
+ * searched three ways: one blocking call at a time, pipelined with
+ * searchAsync, and in one batch with searchAll.
+ * @author Greg
+ *
+ */
+public class ServerTest {
+
+	public static void main(String[] args) throws Exception {
+
+		int numDevices = 50000;
+		int numOfAtts = 100;
+		int numToChange = 15;
+		int searchThreshold = 70;
+		int numOfBands = 20;
+		int sizeOfBands = 6;
+		//Searches sent before waiting for the first answer, when pipelining.
+		int pipelineDepth = 256;
+
+		DeviceGenerator gen = new DeviceGenerator(numOfAtts);
+		Device[] devices = new Device[numDevices];
+		int[][] originals = new int[numDevices][];
+		for (int i = 0; i < numDevices; i++) {
+			devices[i] = gen.getRandomDevice();
+			originals[i] = devices[i].getPrimitiveInput().clone();
+		}
+
+		LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands*sizeOfBands, sizeOfBands));
+		ItemSerializer serializer = new DeviceSerializer();
+
+		try (LSHServer server = LSHServer.start(lsh, serializer, new InetSocketAddress("localhost", 0));
+				LSHClient client = LSHClient.connect(server.getAddress(), serializer)) {
+
+			long t = System.currentTimeMillis();
+			client.addAll(Arrays.asList(devices));
+			long insertionTime = System.currentTimeMillis() - t;
+
+			for(Device d : devices){
+				d.changeProps(numToChange, gen);
+			}
+
+			int local = 0;
+			for(int i = 0; i < numDevices; i++){
+				if(contains(lsh.search(devices[i], searchThreshold), originals[i]))
+					local++;
+			}
+
+			t = System.currentTimeMillis();
+			int blocking = 0;
+			for(int i = 0; i < numDevices; i++){
+				if(contains(client.search(devices[i], searchThreshold), originals[i]))
+					blocking++;
+			}
+			long blockingTime = System.currentTimeMillis() - t;
+
+			t = System.currentTimeMillis();
+			int pipelined = 0;
+			List<CompletableFuture<Collection<LSHable>>> window = new ArrayList<CompletableFuture<Collection<LSHable>>>(pipelineDepth);
+			for(int start = 0; start < numDevices; start += pipelineDepth){
+				int end = Math.min(numDevices, start + pipelineDepth);
+				window.clear();
+				for(int i = start; i < end; i++){
+					window.add(client.searchAsync(devices[i], searchThreshold));
+				}
+				for(int i = start; i < end; i++){
+					if(contains(window.get(i - start).join(), originals[i]))
+						pipelined++;
+				}
+			}
+			long pipelinedTime = System.currentTimeMillis() - t;
+
+			t = System.currentTimeMillis();
+			int batched = 0;
+			List<Collection<LSHable>> allResults = client.searchAll(Arrays.asList(devices), searchThreshold);
+			for(int i = 0; i < numDevices; i++){
+				if(contains(allResults.get(i), originals[i]))
+					batched++;
+			}
+			long batchedTime = System.currentTimeMillis() - t;
+
+			NumberFormat formatter = new DecimalFormat("#0.0");
+			System.out.println(
+			"\nServer: " + server.getAddress()
+			+"\nLocal Accuracy: " + formatter.format(100.0*local/numDevices) +"%"
+			+"\nBlocking Accuracy: " + formatter.format(100.0*blocking/numDevices) +"%"
+			+"\nPipelined Accuracy: " + formatter.format(100.0*pipelined/numDevices) +"%"
+			+"\nBatched Accuracy: " + formatter.format(100.0*batched/numDevices) +"%"
+			+"\nInsertion Time: " + insertionTime
+			+"\nBlocking Search Time: " + blockingTime
+			+"\nPipelined Search Time: " + pipelinedTime
+			+"\nBatched Search Time: " + batchedTime
+			+"\nSize: " + lsh.size());
+		}
+	}
+
+	/**
+	 * Results come back as new devices, so they're matched by their
+	 * properties rather than by identity.
+	 */
+	private static boolean contains(Collection<LSHable> results, int[] props){
+		for(LSHable result : results){
+			if(Arrays.equals(((PrimitiveLSHable)result).getPrimitiveInput(), props))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes a device as its property count followed by its properties.
+	 */
+	public static class DeviceSerializer implements ItemSerializer {
+
+		@Override
+		public byte[] serialize(LSHable item) {
+			int[] props = ((PrimitiveLSHable)item).getPrimitiveInput();
+			ByteBuffer bytes = ByteBuffer.allocate(4 + 4*props.length);
+			bytes.putInt(props.length);
+			bytes.asIntBuffer().put(props);
+			return bytes.array();
+		}
+
+		@Override
+		public LSHable deserialize(ByteBuffer bytes) {
+			int[] props = new int[bytes.getInt()];
+			bytes.asIntBuffer().get(props);
+			return new Device(props);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package lsh.test;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import lsh.LSHable;
+import lsh.WeightedLSHable;
+import lsh.impl.LSHImpl;
+import lsh.impl.MetricsSnapshot;
+import lsh.strategies.LSHStrategy;
+
+/**
+ * Finds documents by the cosine similarity of their term frequencies, with
+ * SimHashStrategy. Documents draw their terms at random from a vocabulary,
+ * repeating some, and weigh them by 1 + log(frequency). Each query is a document with every
+ * weight jittered and a tenth of its terms swapped for others; the search
+ * succeeds if it finds the original.
+ * @author Greg
+ *
+ */
+public class TermVectors {
+
+	public static void main(String[] args) {
+
+		int numDocs = 50000;
+		int vocabularySize = 20000;
+		//Term occurrences per document, and the chance each one repeats the last term.
+		int docLength = 200;
+		double repeats = 0.3;
+		//Relative noise added to each weight, and the share of terms swapped, per query.
+		double jitter = 0.3;
+		double swapped = 0.1;
+		//Bits that must agree: 70% is a cosine similarity of about 0.59.
+		int searchThreshold = 70;
+		int numOfBands = 30;
+		int sizeOfBands = 12;
+
+		Random r = new Random();
+		Doc[] docs = new Doc[numDocs];
+		for (int i = 0; i < numDocs; i++) {
+			docs[i] = randomDoc(r, vocabularySize, docLength, repeats);
+		}
+		Doc[] queries = new Doc[numDocs];
+		double similarity = 0;
+		for (int i = 0; i < numDocs; i++) {
+			queries[i] = perturb(docs[i], r, vocabularySize, jitter, swapped);
+			similarity += cosine(docs[i], queries[i]);
+		}
+
+		LSHImpl lsh = new LSHImpl(Math.max(64, numOfBands*sizeOfBands), sizeOfBands, LSHStrategy.STRATEGIES.simHashStrategy(numOfBands*sizeOfBands, sizeOfBands));
+
+		long t = System.currentTimeMillis();
+		lsh.addAll(Arrays.asList(docs));
+		long insertionTime = System.currentTimeMillis() - t;
+
+		t = System.currentTimeMillis();
+		int successes = 0;
+		for (int i = 0; i < numDocs; i++) {
+			Collection<LSHable> results = lsh.search(queries[i], searchThreshold);
+			if (results.contains(docs[i]))
+				successes++;
+		}
+		long searchTime = System.currentTimeMillis() - t;
+
+		MetricsSnapshot metrics = lsh.getMetrics(false);
+		NumberFormat formatter = new DecimalFormat("#0.0");
+		System.out.println(
+		"\nMean Query Similarity: " + new DecimalFormat("#0.000").format(similarity/numDocs)
+		+"\nAccuracy: " + formatter.format(100.0*successes/numDocs) +"%"
+		+"\nInsertion Time: " + insertionTime
+		+"\nSearch Time: " + searchTime
+		+"\nScanned Per Search: " + formatter.format(metrics.getScannedPerSearch().getMean())
+		+"\nReturned Per Search: " + formatter.format(metrics.getReturnedPerSearch().getMean())
+		+"\nMemory: " + (lsh.memoryUsage()/1000000) + "MB");
+	}
+
+	static Doc randomDoc(Random r, int vocabularySize, int docLength, double repeats) {
+		int[] counts = new int[vocabularySize];
+		int distinct = 0;
+		int term = r.nextInt(vocabularySize);
+		for (int i = 0; i < docLength; i++) {
+			if (r.nextDouble() >= repeats)
+				term = r.nextInt(vocabularySize);
+			if (counts[term]++ == 0)
+				distinct++;
+		}
+		int[] terms = new int[distinct];
+		float[] weights = new float[distinct];
+		int n = 0;
+		for (int t = 0; t < vocabularySize; t++) {
+			if (counts[t] > 0) {
+				terms[n] = t;
+				weights[n++] = (float) (1 + Math.log(counts[t]));
+			}
+		}
+		return new Doc(terms, weights);
+	}
+
+	static Doc perturb(Doc doc, Random r, int vocabularySize, double jitter, double swapped) {
+		int[] terms = doc.terms.clone();
+		float[] weights = doc.weights.clone();
+		for (int i = 0; i < terms.length; i++) {
+			if (r.nextDouble() < swapped)
+				terms[i] = vocabularySize + r.nextInt(vocabularySize);
+			weights[i] *= (float) Math.max(0.1, 1 + jitter * r.nextGaussian());
+		}
+		return new Doc(terms, weights);
+	}
+
+	/**
+	 * Exact cosine similarity, for reporting how similar the queries are.
+	 */
+	static double cosine(Doc a, Doc b) {
+		double dot = 0;
+		for (int i = 0; i < a.terms.length; i++) {
+			for (int j = 0; j < b.terms.length; j++) {
+				if (a.terms[i] == b.terms[j])
+					dot += a.weights[i] * b.weights[j];
+			}
+		}
+		return dot / (norm(a) * norm(b));
+	}
+
+	private static double norm(Doc doc) {
+		double sum = 0;
+		for (float w : doc.weights) {
+			sum += w * w;
+		}
+		return Math.sqrt(sum);
+	}
+
+	static class Doc implements WeightedLSHable {
+
+		private final int[] terms;
+		private final float[] weights;
+
+		Doc(int[] terms, float[] weights) {
+			this.terms = terms;
+			this.weights = weights;
+		}
+
+		@Override
+		public int[] getPrimitiveInput() {
+			return terms;
+		}
+
+		@Override
+		public float[] getWeights() {
+			return weights;
+		}
+	}
+}
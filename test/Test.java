@@ -1,13 +1,17 @@
 package lsh.test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 
 import lsh.LSH;
 import lsh.LSHable;
+import lsh.PrimitiveLSHable;
 import lsh.impl.LSHImpl;
 import lsh.strategies.LSHStrategy;
 
@@ -47,8 +51,12 @@ public class Test {
 		int numOfBands = 20;
 		//Number of minhashes to join together per band. More minhashes yields greater precision but less recall.
 		int sizeOfBands = 6;
+		//Use addAll/searchAll, which hash and search on all cores, instead of one call per device.
+		boolean useBatchApi = true;
+		//Extra buckets to search per device (multi-probe). 10 bands with 40 probes get close to the recall of 20 bands, in half the memory.
+		int numOfProbes = 0;
 		
-		//best: 90/13. Yields 99% accuracy, 350 search time
+		//best: 90/13. Yields 99% accuracy, 350 search time. Tuning picks them from a sample instead.
 		
 		int successes = 0;
 		int failures = 0;
@@ -66,12 +74,17 @@ public class Test {
 			devices[i] = gen.getRandomDevice();
 		}
 		
-		//LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.gregsStrategy(numOfBands*sizeOfBands, sizeOfBands));
+		//LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.onePermutationStrategy(numOfBands*sizeOfBands, sizeOfBands));
+		//LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.gregsStrategy(numOfBands*sizeOfBands, sizeOfBands, Arrays.asList(devices)));
 		LSHImpl lsh = new LSHImpl(200, 10, LSHStrategy.STRATEGIES.randomHashStrategy(numOfBands*sizeOfBands, sizeOfBands));
 		
 		long t = System.currentTimeMillis();
-		for(Device d : devices){
-			lsh.add(d);
+		if(useBatchApi){
+			lsh.addAll(Arrays.asList(devices));
+		}else{
+			for(Device d : devices){
+				lsh.add(d);
+			}
 		}
 		insertionTime = System.currentTimeMillis() - t;
 		
@@ -80,8 +93,12 @@ public class Test {
 		}
 		
 		t = System.currentTimeMillis();
-		for(Device d : devices){
-			Collection<LSHable> results = lsh.search(d, searchThreshold);
+		List<Collection<LSHable>> allResults = null;
+		if(useBatchApi)
+			allResults = lsh.searchAll(Arrays.asList(devices), searchThreshold, numOfProbes);
+		for(int i = 0; i < devices.length; i++){
+			Device d = devices[i];
+			Collection<LSHable> results = useBatchApi ? allResults.get(i) : lsh.search(d, searchThreshold, numOfProbes);
 			if(results != null && results.contains(d)){
 				successes++;
 			}else{
@@ -89,6 +106,7 @@ public class Test {
 			}
 		}
 		searchTime = System.currentTimeMillis() - t;
+		long allocationPerSearch = allocationPerSearch(lsh, devices, searchThreshold, 5000);
 		
 		devices = null;
 		System.gc();
@@ -104,10 +122,34 @@ public class Test {
 		+"\nMemory: " + (memoryRequired/1000000) +"MB"
 		+"\nInsertion Time: " + insertionTime
 		+"\nSearch Time: " + searchTime
+		+"\nAllocation Per Search: " + (allocationPerSearch < 0 ? "n/a" : allocationPerSearch + " bytes")
 		+"\nTotal Buckets: " + lsh.getTotalBuckets()
 		+"\nCollision Rate: " + formatter.format(100*(1 - lsh.getTotalBuckets()/(double)(numDevices*(numOfBands)))) + "%");
+		System.out.println("\n" + lsh.getMetrics());
 
 	}
+	
+	/**
+	 * Average heap allocated by one search, in bytes, measured on this thread
+	 * over the first numOfSearches inputs after running them once to warm up.
+	 * @return -1 if the JVM can't measure allocation per thread.
+	 */
+	public static long allocationPerSearch(LSH lsh, LSHable[] inputs, int searchThreshold, int numOfSearches){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+		long threadId = Thread.currentThread().getId();
+		numOfSearches = Math.min(numOfSearches, inputs.length);
+		for(int i = 0; i < numOfSearches; i++){
+			lsh.search(inputs[i], searchThreshold);
+		}
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < numOfSearches; i++){
+			lsh.search(inputs[i], searchThreshold);
+		}
+		return (allocations.getThreadAllocatedBytes(threadId) - before)/Math.max(1, numOfSearches);
+	}
 
 	public static class DeviceGenerator {
 
@@ -141,7 +183,7 @@ public class Test {
 		public Device getRandomDevice() {
 
 			Random r = new Random();
-			Integer[] randomProps = new Integer[numOfProperties];
+			int[] randomProps = new int[numOfProperties];
 			for(int i = 0; i < numOfProperties; i++){
 				randomProps[i] = props[i][r.nextInt(numOfOptionsPerAttribute)];
 			}
@@ -150,11 +192,11 @@ public class Test {
 		}
 	}
 
-	public static class Device implements LSHable {
+	public static class Device implements PrimitiveLSHable {
 
-		Integer[] props;
+		int[] props;
 
-		public Device(Integer[] props) {
+		public Device(int[] props) {
 			this.props = props;
 		}
 
@@ -168,8 +210,8 @@ public class Test {
 		}
 
 		@Override
-		public Iterable<Integer> getInput() {
-			return Arrays.asList(props);
+		public int[] getPrimitiveInput() {
+			return props;
 		}
 	}
 }
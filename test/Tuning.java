@@ -0,0 +1,49 @@
+package lsh.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lsh.test.Test.Device;
+import lsh.test.Test.DeviceGenerator;
+import lsh.tuning.BandTuner;
+import lsh.tuning.TunedConfiguration;
+
+/**
+ * Tunes the bands for the device demo in Test instead of guessing them.
+ * Changing 15 of a device's 100 properties leaves it with a Jaccard
+ * similarity of about 0.75 to the original, so that is the target.
+ * @author Greg
+ *
+ */
+public class Tuning {
+
+	public static void main(String[] args) {
+
+		int sampleSize = 10000;
+		int numOfAtts = 100;
+		//Similarity searches must find, and the share of such devices to find.
+		double similarity = 0.75;
+		double recall = 0.95;
+		//Size of the index the configuration is for.
+		long expectedSize = 50000;
+
+		DeviceGenerator gen = new DeviceGenerator(numOfAtts);
+		List<Device> sample = new ArrayList<Device>(sampleSize);
+		for (int i = 0; i < sampleSize; i++) {
+			sample.add(gen.getRandomDevice());
+		}
+
+		BandTuner tuner = new BandTuner(similarity, recall);
+		tuner.setExpectedSize(expectedSize);
+		long t = System.currentTimeMillis();
+		TunedConfiguration best = tuner.tune(sample);
+		long tuningTime = System.currentTimeMillis() - t;
+
+		for (TunedConfiguration trial : tuner.getTrials()) {
+			System.out.println(trial);
+		}
+		System.out.println(
+		"\nBest: " + best.getNumOfBands() + " bands of " + best.getSizeOfBands() + ", threshold " + best.getMatchThreshold()
+		+"\nTuning Time: " + tuningTime);
+	}
+}
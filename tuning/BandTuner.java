@@ -0,0 +1,446 @@
+package lsh.tuning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import lsh.LSHable;
+import lsh.PrimitiveLSHable;
+import lsh.impl.LSHImpl;
+import lsh.impl.MetricsSnapshot;
+import lsh.strategies.HashingUtils;
+import lsh.strategies.RandomHashStrategy;
+
+/**
+ * Picks the number of bands, their size and the search threshold for a
+ * RandomHashStrategy index, given the similarity that must be found, the
+ * share of such items a search must find (the recall), and a sample of the
+ * data. Of the layouts that reach the recall, it returns the one with the
+ * lowest memory per item times time per search.
+ *
+ * Tuning takes three steps:
+ * <ol>
+ * <li>Calibrate. Each query is a sample item with features swapped for
+ * others from the sample until its Jaccard similarity to the original is
+ * the target. Query/original pairs and random pairs of items are hashed
+ * with 128 minhashes, to learn how often minhashes and signature bits
+ * actually agree at the target similarity and across the data.</li>
+ * <li>Model. For every layout within the minhash budget, the S-curve
+ * 1 - (1 - p^r)^b over the query pairs gives the chance of sharing a band,
+ * and a binomial tail over the signature bits the chance of passing the
+ * filter; the threshold is the strictest one that still reaches the recall.
+ * Cost is estimated from the minhashes computed, buckets visited and
+ * entries expected per search.</li>
+ * <li>Measure. The cheapest few layouts, at most one per band size, are
+ * built from the sample and searched with the queries, and the cheapest one
+ * whose measured recall reaches the target is returned.</li>
+ * </ol>
+ * Not thread-safe.
+ * <pre>
+ * TunedConfiguration best = new BandTuner(0.75, 0.95).tune(sample);
+ * LSHImpl index = best.createIndex();
+ * index.search(item, best.getMatchThreshold());
+ * </pre>
+ * @author Greg
+ *
+ */
+public class BandTuner {
+
+	private static final int CALIBRATION_MINHASHES = 128;
+	// items whose pairs are used to estimate how many entries a search scans.
+	private static final int MAX_PAIR_ITEMS = 1000;
+	private static final int MEASURED_ROUNDS = 3;
+	/*
+	 * Rough costs for the model, measured on the Test workload. Only their
+	 * ratios matter, and the measured step corrects for them.
+	 */
+	private static final double HASH_NANOS = 2.5; // per minhash per feature
+	private static final double BUCKET_NANOS = 50; // per bucket visited
+	private static final double ENTRY_NANOS = 40; // per bucket entry scanned
+	private static final double BYTES_PER_ITEM = 12;
+	private static final double BYTES_PER_ENTRY = 32;
+
+	private final double similarity;
+	private final double recall;
+	private int maxNumOfMinHashes = 256;
+	private int maxSizeOfBands = 16;
+	private int numOfTrials = 6;
+	private int numOfQueries = 500;
+	private long expectedSize = 0;
+	private Random random = new Random();
+
+	private List<TunedConfiguration> trials = Collections.emptyList();
+
+	/**
+	 * @param similarity
+	 *            : The Jaccard similarity, between 0 and 1, of the items
+	 *            searches must find.
+	 * @param recall
+	 *            : The share of those items, between 0 and 1, searches must
+	 *            find.
+	 */
+	public BandTuner(double similarity, double recall) {
+		if (similarity <= 0 || similarity > 1)
+			throw new IllegalArgumentException("Similarity must be in (0, 1]: " + similarity);
+		if (recall <= 0 || recall >= 1)
+			throw new IllegalArgumentException("Recall must be in (0, 1): " + recall);
+		this.similarity = similarity;
+		this.recall = recall;
+	}
+
+	/**
+	 * The most minhashes, bands times band size, an item may be hashed to.
+	 * Default 256.
+	 */
+	public void setMaxNumOfMinHashes(int maxNumOfMinHashes) {
+		this.maxNumOfMinHashes = maxNumOfMinHashes;
+	}
+
+	/**
+	 * Default 16.
+	 */
+	public void setMaxSizeOfBands(int maxSizeOfBands) {
+		this.maxSizeOfBands = Math.min(maxSizeOfBands, CALIBRATION_MINHASHES);
+	}
+
+	/**
+	 * The number of layouts built and measured. Default 6.
+	 */
+	public void setNumOfTrials(int numOfTrials) {
+		this.numOfTrials = numOfTrials;
+	}
+
+	/**
+	 * The number of queries made from the sample. Default 500, or the size
+	 * of the sample if it's smaller.
+	 */
+	public void setNumOfQueries(int numOfQueries) {
+		this.numOfQueries = numOfQueries;
+	}
+
+	/**
+	 * The number of items the real index will hold. Searches scan more
+	 * entries in a bigger index, so the time spent scanning is scaled up from
+	 * the sample's. Default: the size of the sample.
+	 */
+	public void setExpectedSize(long expectedSize) {
+		this.expectedSize = expectedSize;
+	}
+
+	public void setSeed(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * The layouts measured by the last tune, cheapest predicted first.
+	 */
+	public List<TunedConfiguration> getTrials() {
+		return trials;
+	}
+
+	/**
+	 * @param sample
+	 *            : Items like the ones to be indexed. A few thousand is
+	 *            plenty; the search costs are scaled to setExpectedSize.
+	 * @return the cheapest layout that met the recall, or if none did, the
+	 *         one that came closest.
+	 * @throws IllegalArgumentException
+	 *             if no layout within the minhash budget is predicted to
+	 *             reach the recall.
+	 */
+	public TunedConfiguration tune(List<? extends LSHable> sample) {
+		if (sample.size() < 2)
+			throw new IllegalArgumentException("The sample needs at least 2 items");
+		int[][] features = new int[sample.size()][];
+		int numOfFeatures = 0;
+		for (int i = 0; i < features.length; i++) {
+			features[i] = distinct(HashingUtils.getInput(sample.get(i)));
+			numOfFeatures += features[i].length;
+		}
+		int[] pool = new int[numOfFeatures];
+		int position = 0;
+		for (int[] f : features) {
+			System.arraycopy(f, 0, pool, position, f.length);
+			position += f.length;
+		}
+
+		int numOfQueries = Math.min(this.numOfQueries, sample.size());
+		int[] originals = sampleIndices(sample.size(), numOfQueries);
+		Query[] queries = new Query[numOfQueries];
+		for (int q = 0; q < numOfQueries; q++) {
+			queries[q] = new Query(perturb(features[originals[q]], pool));
+		}
+
+		// calibrate: minhash and signature bit agreement, for query pairs and random pairs.
+		RandomHashStrategy calibration = new RandomHashStrategy(CALIBRATION_MINHASHES, 1, HashingUtils.DEFAULT_MIXING, random.nextLong());
+		int[] queryAgreements = new int[numOfQueries];
+		long agreeingBits = 0;
+		for (int q = 0; q < numOfQueries; q++) {
+			int[] a = minHashes(calibration, queries[q]);
+			int[] b = minHashes(calibration, sample.get(originals[q]));
+			for (int i = 0; i < CALIBRATION_MINHASHES; i++) {
+				if (a[i] == b[i])
+					queryAgreements[q]++;
+				if (((a[i] ^ b[i]) & 1) == 0)
+					agreeingBits++;
+			}
+		}
+		double bitAgreement = (double) agreeingBits / (numOfQueries * CALIBRATION_MINHASHES);
+
+		int[] pairItems = sampleIndices(sample.size(), Math.min(MAX_PAIR_ITEMS, sample.size()));
+		int[][] pairMinHashes = new int[pairItems.length][];
+		for (int i = 0; i < pairItems.length; i++) {
+			pairMinHashes[i] = minHashes(calibration, sample.get(pairItems[i]));
+		}
+		// number of random pairs agreeing on each number of minhashes.
+		long[] pairAgreements = new long[CALIBRATION_MINHASHES + 1];
+		for (int i = 0; i < pairItems.length; i++) {
+			for (int j = i + 1; j < pairItems.length; j++) {
+				int agreements = 0;
+				for (int k = 0; k < CALIBRATION_MINHASHES; k++) {
+					if (pairMinHashes[i][k] == pairMinHashes[j][k])
+						agreements++;
+				}
+				pairAgreements[agreements]++;
+			}
+		}
+		long numOfPairs = (long) pairItems.length * (pairItems.length - 1) / 2;
+
+		double avgFeatures = (double) numOfFeatures / sample.size();
+		long size = expectedSize > 0 ? expectedSize : sample.size();
+		List<TunedConfiguration> candidates = model(queryAgreements, bitAgreement, pairAgreements, numOfPairs, avgFeatures, size);
+		if (candidates.isEmpty())
+			throw new IllegalArgumentException("No layout within " + maxNumOfMinHashes + " minhashes reaches a recall of "
+					+ recall + " at similarity " + similarity);
+
+		trials = new ArrayList<TunedConfiguration>(candidates.subList(0, Math.min(numOfTrials, candidates.size())));
+		TunedConfiguration best = null;
+		for (TunedConfiguration trial : trials) {
+			measure(trial, sample, originals, queries, size);
+			if (best == null || better(trial, best))
+				best = trial;
+		}
+		return best;
+	}
+
+	/**
+	 * Every layout predicted to reach the recall, keeping the cheapest for
+	 * each band size, cheapest first.
+	 */
+	private List<TunedConfiguration> model(int[] queryAgreements, double bitAgreement, long[] pairAgreements, long numOfPairs,
+			double avgFeatures, long size) {
+		List<TunedConfiguration> candidates = new ArrayList<TunedConfiguration>();
+		for (int r = 1; r <= maxSizeOfBands; r++) {
+			// chance a query and its original agree on a band of r minhashes.
+			double[] bandAgreement = new double[queryAgreements.length];
+			for (int q = 0; q < queryAgreements.length; q++) {
+				bandAgreement[q] = allAgree(queryAgreements[q], r);
+			}
+			// expected bands a random pair shares, per band.
+			double pairBandAgreement = 0;
+			for (int c = 0; c <= CALIBRATION_MINHASHES; c++) {
+				pairBandAgreement += pairAgreements[c] * allAgree(c, r);
+			}
+			pairBandAgreement /= numOfPairs;
+
+			TunedConfiguration cheapest = null;
+			for (int b = 1; b * r <= maxNumOfMinHashes; b++) {
+				double bandRecall = 0;
+				for (double p : bandAgreement) {
+					bandRecall += 1 - Math.pow(1 - p, b);
+				}
+				bandRecall /= bandAgreement.length;
+				if (bandRecall < recall)
+					continue;
+				int signatureBits = Math.min(64, b * r);
+				int threshold = 100;
+				while (threshold > 0 && bandRecall * passesFilter(signatureBits, bitAgreement, threshold) < recall)
+					threshold--;
+
+				double bytes = BYTES_PER_ITEM + BYTES_PER_ENTRY * b;
+				double nanos = HASH_NANOS * b * r * avgFeatures + BUCKET_NANOS * b + ENTRY_NANOS * size * b * pairBandAgreement;
+				TunedConfiguration configuration = new TunedConfiguration(b, r, threshold,
+						bandRecall * passesFilter(signatureBits, bitAgreement, threshold), bytes * nanos);
+				if (cheapest == null || configuration.getPredictedCost() < cheapest.getPredictedCost())
+					cheapest = configuration;
+			}
+			if (cheapest != null)
+				candidates.add(cheapest);
+		}
+		Collections.sort(candidates, Comparator.comparingDouble(TunedConfiguration::getPredictedCost));
+		return candidates;
+	}
+
+	/**
+	 * Builds an index from the sample and searches it with every query, once
+	 * to warm up and then MEASURED_ROUNDS times, keeping the fastest round's
+	 * timings so a stray pause doesn't decide the result.
+	 */
+	private void measure(TunedConfiguration trial, List<? extends LSHable> sample, int[] originals, Query[] queries, long size) {
+		LSHImpl index = trial.createIndex();
+		index.addAll(sample);
+		int threshold = trial.getMatchThreshold();
+		int found = 0;
+		for (int q = 0; q < queries.length; q++) {
+			if (containsSame(index.search(queries[q], threshold), sample.get(originals[q])))
+				found++;
+		}
+
+		double searchNanos = Double.MAX_VALUE;
+		double hashNanos = Double.MAX_VALUE;
+		double scanned = 0;
+		for (int round = 0; round < MEASURED_ROUNDS; round++) {
+			index.resetMetrics();
+			for (Query query : queries) {
+				index.search(query, threshold);
+			}
+			MetricsSnapshot metrics = index.getMetrics(false);
+			searchNanos = Math.min(searchNanos, metrics.getSearchLatency().getMean());
+			scanned = metrics.getScannedPerSearch().getMean();
+
+			long start = System.nanoTime();
+			for (Query query : queries) {
+				index.getStrategy().hash(query);
+			}
+			hashNanos = Math.min(hashNanos, (double) (System.nanoTime() - start) / queries.length);
+		}
+		double scanNanos = Math.max(0, searchNanos - hashNanos);
+
+		trial.measuredRecall = (double) found / queries.length;
+		trial.bytesPerItem = (double) index.memoryUsage() / index.size();
+		trial.searchNanos = hashNanos + scanNanos * size / sample.size();
+		trial.scannedPerSearch = scanned * size / sample.size();
+		// allow for sampling error: within two standard errors of the target.
+		trial.meetsTarget = trial.measuredRecall >= recall - 2 * Math.sqrt(recall * (1 - recall) / queries.length);
+	}
+
+	private static boolean better(TunedConfiguration a, TunedConfiguration b) {
+		if (a.meetsTarget() != b.meetsTarget())
+			return a.meetsTarget();
+		if (a.meetsTarget())
+			return a.getMeasuredCost() < b.getMeasuredCost();
+		return a.getMeasuredRecall() > b.getMeasuredRecall();
+	}
+
+	/**
+	 * The chance that r minhashes picked at random from the calibration's
+	 * all agree, given how many of them agreed: an unbiased estimate of p^r.
+	 */
+	private static double allAgree(int agreements, int r) {
+		double p = 1;
+		for (int i = 0; i < r; i++) {
+			p *= (double) (agreements - i) / (CALIBRATION_MINHASHES - i);
+		}
+		return Math.max(0, p);
+	}
+
+	/**
+	 * The chance a signature passes LSHImpl's filter at a threshold, when
+	 * each of its meaningful bits agrees with the query's independently.
+	 * The rest of a 64-bit signature is zero in both, so always agrees.
+	 */
+	private static double passesFilter(int signatureBits, double bitAgreement, int threshold) {
+		int maxNumOfDifferences = 64 - 64 * threshold / 100;
+		double p = 0;
+		// binomial probabilities of 0 to maxNumOfDifferences - 1 differing bits.
+		double term = Math.pow(bitAgreement, signatureBits);
+		for (int d = 0; d < maxNumOfDifferences && d <= signatureBits; d++) {
+			p += term;
+			term *= (double) (signatureBits - d) / (d + 1) * (1 - bitAgreement) / bitAgreement;
+		}
+		return Math.min(1, p);
+	}
+
+	private static int[] minHashes(RandomHashStrategy strategy, LSHable item) {
+		return strategy.hashWithMinHashes(item).getMinHashes();
+	}
+
+	private static boolean containsSame(Collection<LSHable> results, LSHable item) {
+		for (LSHable result : results) {
+			if (result == item)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A copy of the features with its Jaccard similarity to them brought down
+	 * to the target, by replacing some with features from the pool that
+	 * aren't among them.
+	 */
+	private int[] perturb(int[] features, int[] pool) {
+		int n = features.length;
+		// keeping k of n and adding n - k new ones gives a similarity of k / (2n - k).
+		int keep = (int) Math.ceil(2 * similarity * n / (1 + similarity));
+		int[] perturbed = features.clone();
+		for (int i = 0; i < keep; i++) {
+			int j = i + random.nextInt(n - i);
+			int swap = perturbed[i];
+			perturbed[i] = perturbed[j];
+			perturbed[j] = swap;
+		}
+		for (int i = keep; i < n; i++) {
+			int feature;
+			int attempts = 0;
+			do {
+				// fall back to random features if the pool is mostly this item's.
+				feature = attempts++ < 100 ? pool[random.nextInt(pool.length)] : random.nextInt();
+			} while (Arrays.binarySearch(features, feature) >= 0 || contains(perturbed, keep, i, feature));
+			perturbed[i] = feature;
+		}
+		return perturbed;
+	}
+
+	private static boolean contains(int[] array, int from, int to, int value) {
+		for (int i = from; i < to; i++) {
+			if (array[i] == value)
+				return true;
+		}
+		return false;
+	}
+
+	private static int[] distinct(int[] features) {
+		int[] sorted = features.clone();
+		Arrays.sort(sorted);
+		int size = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1])
+				sorted[size++] = sorted[i];
+		}
+		return Arrays.copyOf(sorted, size);
+	}
+
+	/**
+	 * Distinct indices below bound, in random order.
+	 */
+	private int[] sampleIndices(int bound, int count) {
+		int[] indices = new int[bound];
+		for (int i = 0; i < bound; i++) {
+			indices[i] = i;
+		}
+		for (int i = 0; i < count; i++) {
+			int j = i + random.nextInt(bound - i);
+			int swap = indices[i];
+			indices[i] = indices[j];
+			indices[j] = swap;
+		}
+		return Arrays.copyOf(indices, count);
+	}
+
+	private static final class Query implements PrimitiveLSHable {
+		private final int[] features;
+
+		Query(int[] features) {
+			this.features = features;
+		}
+
+		@Override
+		public int[] getPrimitiveInput() {
+			return features;
+		}
+	}
+}
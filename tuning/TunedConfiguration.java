@@ -0,0 +1,143 @@
+package lsh.tuning;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+import lsh.impl.LSHImpl;
+import lsh.strategies.LSHStrategy;
+import lsh.strategies.RandomHashStrategy;
+
+/**
+ * A band layout and search threshold considered by a BandTuner, with what
+ * the model predicted for it and, if it was tried on the sample, what was
+ * measured. Measured fields are NaN for configurations that weren't tried.
+ * @author Greg
+ *
+ */
+public final class TunedConfiguration {
+
+	private final int numOfBands;
+	private final int sizeOfBands;
+	private final int matchThreshold;
+	private final double predictedRecall;
+	private final double predictedCost;
+
+	double measuredRecall = Double.NaN;
+	double bytesPerItem = Double.NaN;
+	double searchNanos = Double.NaN;
+	double scannedPerSearch = Double.NaN;
+	boolean meetsTarget;
+
+	TunedConfiguration(int numOfBands, int sizeOfBands, int matchThreshold, double predictedRecall, double predictedCost) {
+		this.numOfBands = numOfBands;
+		this.sizeOfBands = sizeOfBands;
+		this.matchThreshold = matchThreshold;
+		this.predictedRecall = predictedRecall;
+		this.predictedCost = predictedCost;
+	}
+
+	public int getNumOfBands() {
+		return numOfBands;
+	}
+
+	public int getSizeOfBands() {
+		return sizeOfBands;
+	}
+
+	public int getNumOfMinHashes() {
+		return numOfBands * sizeOfBands;
+	}
+
+	/**
+	 * The matchThreshold to search with, in percent of signature bits.
+	 */
+	public int getMatchThreshold() {
+		return matchThreshold;
+	}
+
+	/**
+	 * The share of items at the target similarity the model expects a
+	 * search to find.
+	 */
+	public double getPredictedRecall() {
+		return predictedRecall;
+	}
+
+	/**
+	 * The model's bytes per item times nanoseconds per search. Only
+	 * meaningful relative to other configurations.
+	 */
+	public double getPredictedCost() {
+		return predictedCost;
+	}
+
+	public boolean wasMeasured() {
+		return !Double.isNaN(measuredRecall);
+	}
+
+	/**
+	 * The share of the sample's queries that found their original.
+	 */
+	public double getMeasuredRecall() {
+		return measuredRecall;
+	}
+
+	/**
+	 * Index memory per item, from LSHImpl.memoryUsage.
+	 */
+	public double getBytesPerItem() {
+		return bytesPerItem;
+	}
+
+	/**
+	 * Mean search latency, scaled to the tuner's expected index size.
+	 */
+	public double getSearchNanos() {
+		return searchNanos;
+	}
+
+	public double getScannedPerSearch() {
+		return scannedPerSearch;
+	}
+
+	/**
+	 * Measured bytes per item times nanoseconds per search.
+	 */
+	public double getMeasuredCost() {
+		return bytesPerItem * searchNanos;
+	}
+
+	/**
+	 * Whether the measured recall reached the target, within sampling error.
+	 */
+	public boolean meetsTarget() {
+		return meetsTarget;
+	}
+
+	public RandomHashStrategy createStrategy() {
+		return LSHStrategy.STRATEGIES.randomHashStrategy(getNumOfMinHashes(), sizeOfBands);
+	}
+
+	/**
+	 * An empty index laid out this way. Search it with getMatchThreshold.
+	 */
+	public LSHImpl createIndex() {
+		return new LSHImpl(Math.max(64, getNumOfMinHashes()), sizeOfBands, createStrategy());
+	}
+
+	@Override
+	public String toString() {
+		NumberFormat percent = new DecimalFormat("#0.0");
+		NumberFormat number = new DecimalFormat("#0");
+		String toString = numOfBands + " bands of " + sizeOfBands + ", threshold " + matchThreshold
+				+ ": predicted recall " + percent.format(100 * predictedRecall) + "%";
+		if (wasMeasured()) {
+			toString += ", measured recall " + percent.format(100 * measuredRecall) + "%"
+					+ ", " + number.format(bytesPerItem) + " bytes/item"
+					+ ", " + number.format(searchNanos) + " ns/search"
+					+ ", " + percent.format(scannedPerSearch) + " scanned/search"
+					+ (meetsTarget ? "" : " (misses target)");
+		}
+		return toString;
+	}
+}